@@ -0,0 +1,142 @@
+package com.peerlez.rabbitmq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets: every power of two range is split into eight buckets,
+ * so reported percentiles are within 12.5% of the recorded values.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Records one latency value. Negative values are recorded as zero.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		_counts.incrementAndGet(bucketOf(value));
+		_count.incrementAndGet();
+		_sum.addAndGet(value);
+
+		long max = _max.get();
+		while (value > max && !_max.compareAndSet(max, value)) {
+			max = _max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return The count
+	 */
+	public long getCount() {
+		return _count.get();
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 *
+	 * @return The mean in nanoseconds, or 0 if nothing is recorded
+	 */
+	public double getMean() {
+		long count = _count.get();
+		return count == 0 ? 0 : (double) _sum.get() / count;
+	}
+
+	/**
+	 * Gets the largest recorded value.
+	 *
+	 * @return The maximum in nanoseconds
+	 */
+	public long getMax() {
+		return _max.get();
+	}
+
+	/**
+	 * Gets the value below which the given percentage of the recorded values
+	 * fall.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 *
+	 * @return upper bound of the bucket holding the percentile, in
+	 *         nanoseconds, or 0 if nothing is recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = _count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += _counts.get(bucket);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(bucket), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded concurrently may be lost.
+	 */
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			_counts.set(bucket, 0);
+		}
+		_count.set(0);
+		_sum.set(0);
+		_max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[count = %d, mean = %.0f, p50 = %d, p99 = %d, "
+			+ "p999 = %d, max = %d]", getCount(), getMean(), getPercentile(50),
+			getPercentile(99), getPercentile(99.9), getMax());
+	}
+
+	/**
+	 * Gets the bucket counting the given value.
+	 *
+	 * @param value non-negative value
+	 *
+	 * @return The bucket index
+	 */
+	private static int bucketOf(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value)
+			- SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Gets the largest value counted by the given bucket.
+	 *
+	 * @param bucket the bucket index
+	 *
+	 * @return The upper bound of the bucket
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+		long subBucket = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
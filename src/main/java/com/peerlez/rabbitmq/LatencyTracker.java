@@ -0,0 +1,288 @@
+package com.peerlez.rabbitmq;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * End-to-end latency tracking. {@link RabbitMqPublish} stamps the publish time
+ * and origin into the message headers; {@link RabbitMqConsumer} records the
+ * publish to deliver and deliver to ack latencies per exchange and routing
+ * key.
+ *
+ * When the publisher runs on the same host, the monotonic clock stamped in
+ * {@link #PUBLISH_NANOS_HEADER} is used, so wall clock adjustments don't
+ * skew the result. Java doesn't guarantee that two JVMs share the origin of
+ * {@link System#nanoTime()}, so if the monotonic result differs from the wall
+ * clock one by more than a few milliseconds, the wall clock one is used
+ * instead. Otherwise, or if the host name can't be resolved, the
+ * wall clock stamp is used and negative results caused by clock skew are
+ * counted and recorded as zero. The wall clock stamp has microsecond
+ * resolution but is only accurate to about a millisecond, and follows wall
+ * clock steps, e.g. by NTP, within a second.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class LatencyTracker {
+
+	/**
+	 * Header holding the publish wall clock time in microseconds since epoch.
+	 */
+	public static final String PUBLISH_TIMESTAMP_HEADER =
+		"x-publish-timestamp-micros";
+
+	/**
+	 * Header holding the publish time of the publisher host monotonic clock
+	 * in nanoseconds.
+	 */
+	public static final String PUBLISH_NANOS_HEADER = "x-publish-nanotime";
+
+	/**
+	 * Header holding the origin id given by the publisher.
+	 */
+	public static final String ORIGIN_HEADER = "x-origin-id";
+
+	/**
+	 * Header holding the host name of the publisher.
+	 */
+	public static final String ORIGIN_HOST_HEADER = "x-origin-host";
+
+	private static final String LOCAL_HOST = localHostName();
+
+	// the wall clock stamps of two JVMs are only accurate to about a
+	// millisecond each, so larger differences mean unrelated monotonic clocks
+	private static final long SAME_HOST_TOLERANCE_NANOS = TimeUnit.MILLISECONDS
+		.toNanos(5);
+
+	// wall clock in microseconds is derived from the monotonic clock, as
+	// System.currentTimeMillis() only has millisecond resolution. The anchor
+	// is renewed every second so that wall clock steps are followed.
+	private static final long ANCHOR_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static volatile ClockAnchor _clockAnchor = new ClockAnchor();
+
+	private final ConcurrentMap<String, ConcurrentMap<String, FlowLatency>> _flows =
+		new ConcurrentHashMap<>();
+
+	/**
+	 * Adds the latency headers to the given properties.
+	 *
+	 * @param properties properties of the message to publish
+	 * @param originId id of the publisher, e.g. the service name
+	 *
+	 * @return new properties with the latency headers
+	 */
+	public static BasicProperties stamp(BasicProperties properties,
+		String originId) {
+
+		long nanos = System.nanoTime();
+		Map<String, Object> headers = new HashMap<>();
+		if (properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+		headers.put(PUBLISH_TIMESTAMP_HEADER, toWallClockMicros(nanos));
+		headers.put(PUBLISH_NANOS_HEADER, nanos);
+		headers.put(ORIGIN_HEADER, originId);
+		if (LOCAL_HOST != null) {
+			headers.put(ORIGIN_HOST_HEADER, LOCAL_HOST);
+		}
+
+		return properties.builder().headers(headers).build();
+	}
+
+	/**
+	 * Records the publish to deliver latency of a delivery. Deliveries
+	 * without the latency headers are ignored.
+	 *
+	 * @param exchange exchange of the delivery
+	 * @param routingKey routing key of the delivery
+	 * @param properties properties of the delivery
+	 * @param deliveredNanos monotonic clock time of the delivery
+	 */
+	public void recordDelivery(String exchange, String routingKey,
+		BasicProperties properties, long deliveredNanos) {
+
+		Map<String, Object> headers = properties == null ? null : properties
+			.getHeaders();
+		if (headers == null) {
+			return;
+		}
+		Object publishNanos = headers.get(PUBLISH_NANOS_HEADER);
+		Object publishMicros = headers.get(PUBLISH_TIMESTAMP_HEADER);
+		if (!(publishNanos instanceof Number)
+			|| !(publishMicros instanceof Number)) {
+			return;
+		}
+
+		FlowLatency flow = getFlow(exchange, routingKey);
+		long latency = TimeUnit.MICROSECONDS.toNanos(toWallClockMicros(
+			deliveredNanos) - ((Number) publishMicros).longValue());
+		Object originHost = headers.get(ORIGIN_HOST_HEADER);
+		if (LOCAL_HOST != null && originHost != null
+			&& LOCAL_HOST.equals(originHost.toString())) {
+			long monotonicLatency = deliveredNanos
+				- ((Number) publishNanos).longValue();
+			if (Math.abs(monotonicLatency - latency)
+				<= SAME_HOST_TOLERANCE_NANOS) {
+				latency = monotonicLatency;
+			}
+		}
+		if (latency < 0) {
+			flow._skewedCount.incrementAndGet();
+		}
+		flow._publishToDeliver.record(latency);
+	}
+
+	/**
+	 * Records the deliver to ack latency of a delivery.
+	 *
+	 * @param exchange exchange of the delivery
+	 * @param routingKey routing key of the delivery
+	 * @param deliveredNanos monotonic clock time of the delivery
+	 */
+	public void recordAck(String exchange, String routingKey,
+		long deliveredNanos) {
+		getFlow(exchange, routingKey)._deliverToAck.record(System.nanoTime()
+			- deliveredNanos);
+	}
+
+	/**
+	 * Gets the latencies of the given exchange and routing key.
+	 *
+	 * @param exchange the exchange
+	 * @param routingKey the routing key
+	 *
+	 * @return The latencies of the flow
+	 */
+	public FlowLatency getFlow(String exchange, String routingKey) {
+		ConcurrentMap<String, FlowLatency> byRoutingKey = _flows.get(exchange);
+		if (byRoutingKey == null) {
+			byRoutingKey = new ConcurrentHashMap<>();
+			ConcurrentMap<String, FlowLatency> existing = _flows.putIfAbsent(
+				exchange, byRoutingKey);
+			if (existing != null) {
+				byRoutingKey = existing;
+			}
+		}
+
+		FlowLatency flow = byRoutingKey.get(routingKey);
+		if (flow == null) {
+			flow = new FlowLatency();
+			FlowLatency existing = byRoutingKey.putIfAbsent(routingKey, flow);
+			if (existing != null) {
+				flow = existing;
+			}
+		}
+		return flow;
+	}
+
+	/**
+	 * Gets the latencies of all flows seen so far, keyed by exchange and
+	 * routing key.
+	 *
+	 * @return The latencies by exchange and routing key
+	 */
+	public Map<String, Map<String, FlowLatency>> getFlows() {
+		Map<String, Map<String, FlowLatency>> flows = new HashMap<>();
+		for (Map.Entry<String, ConcurrentMap<String, FlowLatency>> entry : _flows
+			.entrySet()) {
+			flows.put(entry.getKey(),
+				new HashMap<String, FlowLatency>(entry.getValue()));
+		}
+		return flows;
+	}
+
+	/**
+	 * Converts monotonic clock time to wall clock time.
+	 *
+	 * @param nanos monotonic clock time in nanoseconds
+	 *
+	 * @return wall clock time in microseconds since epoch
+	 */
+	private static long toWallClockMicros(long nanos) {
+		ClockAnchor anchor = _clockAnchor;
+		if (nanos - anchor._nanos > ANCHOR_NANOS) {
+			anchor = new ClockAnchor();
+			_clockAnchor = anchor;
+		}
+		return anchor._micros + TimeUnit.NANOSECONDS.toMicros(nanos
+			- anchor._nanos);
+	}
+
+	/**
+	 * Gets the host name of this host.
+	 *
+	 * @return The host name, or <code>null</code> if it can't be resolved
+	 */
+	private static String localHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Wall clock time read at a monotonic clock time.
+	 */
+	private static final class ClockAnchor {
+
+		private final long _micros = TimeUnit.MILLISECONDS.toMicros(System
+			.currentTimeMillis());
+		private final long _nanos = System.nanoTime();
+	}
+
+	/**
+	 * Latencies of one exchange and routing key.
+	 */
+	public static final class FlowLatency {
+
+		private final LatencyHistogram _publishToDeliver =
+			new LatencyHistogram();
+		private final LatencyHistogram _deliverToAck = new LatencyHistogram();
+		private final AtomicLong _skewedCount = new AtomicLong();
+
+		/**
+		 * Gets the time from publish until the consumer received the message.
+		 *
+		 * @return The publish to deliver latencies
+		 */
+		public LatencyHistogram getPublishToDeliver() {
+			return _publishToDeliver;
+		}
+
+		/**
+		 * Gets the time from delivery until the message was acknowledged,
+		 * i.e. the handler time.
+		 *
+		 * @return The deliver to ack latencies
+		 */
+		public LatencyHistogram getDeliverToAck() {
+			return _deliverToAck;
+		}
+
+		/**
+		 * Gets the number of publish to deliver latencies that were negative
+		 * because of clock skew between the hosts.
+		 *
+		 * @return The number of skewed samples
+		 */
+		public long getSkewedCount() {
+			return _skewedCount.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[publishToDeliver = %s, deliverToAck = %s, "
+				+ "skewed = %d]", _publishToDeliver, _deliverToAck,
+				getSkewedCount());
+		}
+	}
+}
@@ -1,9 +1,12 @@
 package com.peerlez.rabbitmq;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.AMQP.BasicProperties;
 
@@ -24,6 +27,14 @@ public final class Message {
 	private long _deliveryTag;
 	private static ObjectMapper _jsonObjectMapper = new ObjectMapper();
 
+	// only set on messages owned by a MessagePool. Heap pooled messages
+	// refer to the delivered array, direct ones copy the body off-heap.
+	private MessagePool _pool;
+	private int _bodyOffset;
+	private int _bodyLength;
+	private ByteBuffer _bodyBuffer;
+	private ByteBuffer _bodyView;
+
 	/**
 	 * Construct new Message with the given values
 	 *
@@ -45,6 +56,96 @@ public final class Message {
 
 	}
 
+	/**
+	 * Construct new recyclable Message owned by the given pool. An off-heap
+	 * message holds the body in a direct buffer of the given capacity that is
+	 * reused between deliveries; a heap message refers to the delivered
+	 * array without copying it.
+	 *
+	 * @param pool the pool owning the message
+	 * @param capacity initial capacity of the off-heap body buffer
+	 * @param direct whether the body is copied to an off-heap buffer
+	 */
+	Message(MessagePool pool, int capacity, boolean direct) {
+		_pool = pool;
+		_bodyContent = null;
+		if (direct) {
+			allocateBodyBuffer(capacity);
+		}
+	}
+
+	/**
+	 * Fills this pooled message with the given values. A heap message refers
+	 * to the given slice of the array, an off-heap message copies it into the
+	 * body buffer, which is grown if it's too small.
+	 *
+	 * @param basicProperties basicproperties of the message
+	 * @param body array holding the body of the message
+	 * @param offset offset of the body in the array
+	 * @param length length of the body
+	 * @param exchange exchange which the message is published to
+	 * @param routingKey routing key used to bound messages to queue
+	 * @param deliveryTag identifier for a message on the broker
+	 */
+	void wrap(BasicProperties basicProperties, byte[] body, int offset,
+		int length, String exchange, String routingKey, long deliveryTag) {
+		_basicProperties = basicProperties;
+		_exchange = exchange;
+		_routingKey = routingKey;
+		_deliveryTag = deliveryTag;
+
+		if (_bodyBuffer == null) {
+			_bodyContent = body;
+			_bodyOffset = offset;
+			_bodyLength = length;
+			return;
+		}
+		if (length > _bodyBuffer.capacity()) {
+			allocateBodyBuffer(length);
+		}
+		_bodyBuffer.clear();
+		_bodyBuffer.put(body, offset, length);
+		_bodyView.limit(length).position(0);
+	}
+
+	/**
+	 * Clears the references held by this pooled message so that it can be
+	 * handed out again.
+	 */
+	void clear() {
+		_basicProperties = null;
+		_exchange = null;
+		_routingKey = null;
+		_deliveryTag = 0;
+		if (_bodyBuffer == null) {
+			_bodyContent = null;
+			_bodyOffset = 0;
+			_bodyLength = 0;
+		} else {
+			_bodyView.limit(0);
+		}
+	}
+
+	/**
+	 * Gets the pool owning this message.
+	 *
+	 * @return The owning pool, or <code>null</code> if not pooled
+	 */
+	MessagePool getPool() {
+		return _pool;
+	}
+
+	/**
+	 * Allocates a new off-heap body buffer and its read-only view.
+	 *
+	 * @param capacity capacity of the buffer
+	 */
+	private void allocateBodyBuffer(int capacity) {
+		_bodyBuffer = ByteBuffer.allocateDirect(capacity);
+		_bodyView = _bodyBuffer.asReadOnlyBuffer();
+		_bodyView.limit(0);
+	}
+
 	/**
 	 * Gets the basic message properties
 	 *
@@ -55,14 +156,51 @@ public final class Message {
 	}
 
 	/**
-	 * Gets the body content in bytes
+	 * Gets the body content in bytes. For off-heap pooled messages, and for
+	 * heap pooled messages unpacked from a coalesced envelope, this copies
+	 * the body into a new array on every call; use {@link #getBodyBuffer()}
+	 * to read the body without copying.
 	 *
 	 * @return The body content as bytes
 	 */
 	public byte[] getBodyContent() {
+		if (_pool != null && _bodyBuffer == null) {
+			if (_bodyOffset == 0 && _bodyLength == _bodyContent.length) {
+				return _bodyContent;
+			}
+			return Arrays.copyOfRange(_bodyContent, _bodyOffset, _bodyOffset
+				+ _bodyLength);
+		}
+		if (_pool != null) {
+			byte[] copy = new byte[_bodyView.limit()];
+			ByteBuffer source = _bodyView.duplicate();
+			source.position(0);
+			source.get(copy);
+			return copy;
+		}
 		return _bodyContent;
 	}
 
+	/**
+	 * Gets a read-only view of the body content. For off-heap pooled messages
+	 * the view is only valid until the handler returns; the buffer is reused
+	 * for later deliveries afterwards.
+	 *
+	 * @return The body content as read-only buffer
+	 */
+	@JsonIgnore
+	public ByteBuffer getBodyBuffer() {
+		if (_pool != null && _bodyBuffer == null) {
+			return ByteBuffer.wrap(_bodyContent, _bodyOffset, _bodyLength)
+				.slice().asReadOnlyBuffer();
+		}
+		if (_pool != null) {
+			_bodyView.position(0);
+			return _bodyView;
+		}
+		return ByteBuffer.wrap(_bodyContent).asReadOnlyBuffer();
+	}
+
 	/**
 	 * Gets the exchange to which the message is published to.
 	 *
@@ -122,6 +260,15 @@ public final class Message {
 	 * @return message body as String
 	 */
 	private String getBodyContentAsString() {
+		if (_pool != null && _bodyBuffer == null) {
+			return new String(_bodyContent, _bodyOffset, _bodyLength,
+				DEFAULT_MESSAGE_CHARSET);
+		}
+		if (_pool != null) {
+			ByteBuffer source = _bodyView.duplicate();
+			source.position(0);
+			return DEFAULT_MESSAGE_CHARSET.decode(source).toString();
+		}
 		return new String(getBodyContent(), DEFAULT_MESSAGE_CHARSET);
 	}
 
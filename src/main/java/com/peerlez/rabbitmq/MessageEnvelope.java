@@ -0,0 +1,156 @@
+package com.peerlez.rabbitmq;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Format of the envelopes published by {@link RabbitMqCoalescingPublisher}.
+ * An envelope body is a sequence of packed message bodies, each preceded by
+ * its length as a four byte big-endian int. Envelopes are recognized by the
+ * {@link #COUNT_HEADER} header, which holds the number of packed messages.
+ * The content type of the packed messages travels in
+ * {@link #CONTENT_TYPE_HEADER}; the other properties of the envelope are
+ * shared by all of its messages.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+final class MessageEnvelope {
+
+	/**
+	 * Header holding the number of messages packed in the envelope.
+	 */
+	static final String COUNT_HEADER = "x-coalesced-count";
+
+	/**
+	 * Header holding the content type of the packed messages.
+	 */
+	static final String CONTENT_TYPE_HEADER = "x-coalesced-content-type";
+
+	/**
+	 * Content type of the envelope.
+	 */
+	static final String CONTENT_TYPE = "application/x-coalesced-messages";
+
+	/**
+	 * Size in bytes of the length prefix of each packed body.
+	 */
+	static final int LENGTH_PREFIX_BYTES = 4;
+
+	/**
+	 * Non-instantiable.
+	 */
+	private MessageEnvelope() {
+	}
+
+	/**
+	 * Tells whether a delivery with the given properties is an envelope.
+	 *
+	 * @param properties properties of the delivery
+	 *
+	 * @return <code>true</code> if the delivery body holds packed messages
+	 */
+	static boolean isEnvelope(BasicProperties properties) {
+		if (properties == null) {
+			return false;
+		}
+		Map<String, Object> headers = properties.getHeaders();
+		return headers != null && headers.containsKey(COUNT_HEADER);
+	}
+
+	/**
+	 * Gets the properties of the envelope published with the given properties
+	 * of its messages.
+	 *
+	 * @param properties properties shared by the packed messages
+	 * @param count number of packed messages
+	 *
+	 * @return The envelope properties
+	 */
+	static BasicProperties envelopeProperties(BasicProperties properties,
+		int count) {
+		Map<String, Object> headers = new HashMap<>();
+		if (properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+		headers.put(COUNT_HEADER, count);
+		if (properties.getContentType() != null) {
+			headers.put(CONTENT_TYPE_HEADER, properties.getContentType());
+		}
+		return properties.builder().contentType(CONTENT_TYPE).headers(headers)
+			.build();
+	}
+
+	/**
+	 * Gets the properties of the messages packed in an envelope delivered
+	 * with the given properties, i.e. the envelope properties without the
+	 * envelope header and content type.
+	 *
+	 * @param properties properties of the envelope delivery
+	 *
+	 * @return The properties of the packed messages
+	 */
+	static BasicProperties packedProperties(BasicProperties properties) {
+		Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+		headers.remove(COUNT_HEADER);
+		Object contentType = headers.remove(CONTENT_TYPE_HEADER);
+		return properties.builder()
+			.contentType(contentType == null ? null : contentType.toString())
+			.headers(headers.isEmpty() ? null : headers).build();
+	}
+
+	/**
+	 * Gets the properties of the envelope holding the messages left after
+	 * the given number of packed messages of a delivered envelope.
+	 *
+	 * @param properties properties of the envelope delivery, whose framing
+	 *            was checked with {@link #checkFraming(BasicProperties, byte[])}
+	 * @param skipped number of packed messages left out
+	 *
+	 * @return The properties of the remaining envelope
+	 */
+	static BasicProperties remainderProperties(BasicProperties properties,
+		int skipped) {
+		Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+		headers.put(COUNT_HEADER, ((Number) headers.get(COUNT_HEADER))
+			.intValue() - skipped);
+		return properties.builder().headers(headers).build();
+	}
+
+	/**
+	 * Checks that the envelope body consists of exactly the number of packed
+	 * messages given in its {@link #COUNT_HEADER} header.
+	 *
+	 * @param properties properties of the envelope delivery
+	 * @param body the envelope body
+	 *
+	 * @throws RabbitMqClientException if the envelope is malformed
+	 */
+	static void checkFraming(BasicProperties properties, byte[] body) {
+		Object count = properties.getHeaders().get(COUNT_HEADER);
+		if (!(count instanceof Number)) {
+			throw new RabbitMqClientException("Malformed envelope, invalid "
+				+ "message count: " + count);
+		}
+
+		ByteBuffer packed = ByteBuffer.wrap(body);
+		int packedCount = 0;
+		while (packed.hasRemaining()) {
+			int length = packed.remaining() < LENGTH_PREFIX_BYTES ? -1 : packed
+				.getInt();
+			if (length < 0 || length > packed.remaining()) {
+				throw new RabbitMqClientException("Malformed envelope, "
+					+ "truncated message at byte: " + packed.position());
+			}
+			packed.position(packed.position() + length);
+			packedCount++;
+		}
+		if (packedCount != ((Number) count).intValue()) {
+			throw new RabbitMqClientException("Malformed envelope, " + count
+				+ " messages expected but " + packedCount + " found");
+		}
+	}
+}
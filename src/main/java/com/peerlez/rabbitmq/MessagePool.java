@@ -0,0 +1,91 @@
+package com.peerlez.rabbitmq;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Pool of recyclable {@link Message} instances used by the low-allocation
+ * consume mode of {@link RabbitMqConsumer}. A heap pooled message refers to
+ * the body array delivered by the client, also when it's a slice of a
+ * coalesced envelope, so no body is copied. An off-heap pooled message owns
+ * a direct buffer the delivered body is copied into. A message is owned by
+ * the handler only for the duration of
+ * {@link RabbitMqConsumer#handleMessage(Message)} and returns to the pool as
+ * soon as the handler returns, before the delivery is acknowledged.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class MessagePool {
+
+	private final BlockingQueue<Message> _pooled;
+	private final int _bufferCapacity;
+	private final boolean _direct;
+
+	/**
+	 * Constructs new pool.
+	 *
+	 * @param maxPooled maximum number of idle messages kept in the pool. Should
+	 *            be at least the number of deliveries handled concurrently.
+	 * @param bufferCapacity initial off-heap body buffer capacity in bytes of
+	 *            each message. Buffers grow to fit larger bodies. Not used
+	 *            for heap messages.
+	 * @param direct whether the bodies are copied to off-heap buffers
+	 */
+	public MessagePool(int maxPooled, int bufferCapacity, boolean direct) {
+		_pooled = new ArrayBlockingQueue<>(maxPooled);
+		_bufferCapacity = bufferCapacity;
+		_direct = direct;
+	}
+
+	/**
+	 * Takes a message from the pool, or creates a new one if the pool is
+	 * empty, and fills it with the given delivery.
+	 *
+	 * @param basicProperties basicproperties of the message
+	 * @param body array holding the body of the message
+	 * @param offset offset of the body in the array
+	 * @param length length of the body
+	 * @param exchange exchange which the message is published to
+	 * @param routingKey routing key used to bound messages to queue
+	 * @param deliveryTag identifier for a message on the broker
+	 *
+	 * @return The filled message
+	 */
+	Message acquire(BasicProperties basicProperties, byte[] body, int offset,
+		int length, String exchange, String routingKey, long deliveryTag) {
+
+		Message message = _pooled.poll();
+		if (message == null) {
+			message = new Message(this, _bufferCapacity, _direct);
+		}
+		message.wrap(basicProperties, body, offset, length, exchange,
+			routingKey, deliveryTag);
+		return message;
+	}
+
+	/**
+	 * Returns the message to the pool. The message is dropped if the pool is
+	 * full.
+	 *
+	 * @param message message taken from this pool
+	 */
+	void release(Message message) {
+		if (message.getPool() != this) {
+			throw new IllegalArgumentException("Message not owned by the pool");
+		}
+		message.clear();
+		_pooled.offer(message);
+	}
+
+	/**
+	 * Gets the number of idle messages in the pool.
+	 *
+	 * @return The number of pooled messages
+	 */
+	public int getPooledCount() {
+		return _pooled.size();
+	}
+}
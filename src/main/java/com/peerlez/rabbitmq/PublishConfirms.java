@@ -0,0 +1,152 @@
+package com.peerlez.rabbitmq;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Publisher confirms of one channel. Puts the channel to confirm mode once and
+ * matches the acks and nacks of the broker to the publishes by their
+ * sequence numbers, so that concurrent publishers sharing the channel only
+ * wait for their own messages.
+ *
+ * The sequence number must be taken with {@link #expect(long)} right before
+ * the publish, holding the lock the publishes on the channel are serialized
+ * with.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+final class PublishConfirms implements ConfirmListener, ShutdownListener {
+
+	private final Channel _channel;
+	private final ConcurrentNavigableMap<Long, PendingConfirm> _pending =
+		new ConcurrentSkipListMap<>();
+
+	/**
+	 * Puts the given channel to confirm mode.
+	 *
+	 * @param channel the channel to track
+	 *
+	 * @throws IOException if enabling confirms fails
+	 */
+	PublishConfirms(Channel channel) throws IOException {
+		_channel = channel;
+		_channel.addConfirmListener(this);
+		_channel.addShutdownListener(this);
+		_channel.confirmSelect();
+	}
+
+	/**
+	 * Gets the tracked channel.
+	 *
+	 * @return The channel in confirm mode
+	 */
+	Channel getChannel() {
+		return _channel;
+	}
+
+	/**
+	 * Registers the publish with the given sequence number.
+	 *
+	 * @param seqNo the sequence number of the next publish
+	 *
+	 * @return The confirm to wait for
+	 */
+	PendingConfirm expect(long seqNo) {
+		PendingConfirm pending = new PendingConfirm(seqNo);
+		_pending.put(seqNo, pending);
+		return pending;
+	}
+
+	/**
+	 * Forgets the given publish, e.g. when it fails or the wait times out.
+	 *
+	 * @param pending the confirm to forget
+	 */
+	void forget(PendingConfirm pending) {
+		_pending.remove(pending._seqNo);
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		complete(deliveryTag, multiple, true);
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		complete(deliveryTag, multiple, false);
+	}
+
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+		for (Long seqNo : _pending.keySet()) {
+			PendingConfirm pending = _pending.remove(seqNo);
+			if (pending != null) {
+				pending._shutdown = cause;
+				pending._done.countDown();
+			}
+		}
+	}
+
+	private void complete(long deliveryTag, boolean multiple, boolean acked) {
+		Map<Long, PendingConfirm> completed = multiple ? _pending.headMap(
+			deliveryTag, true) : _pending.subMap(deliveryTag, true,
+			deliveryTag, true);
+		for (Long seqNo : completed.keySet()) {
+			PendingConfirm pending = _pending.remove(seqNo);
+			if (pending != null) {
+				pending._acked = acked;
+				pending._done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * The confirm of one publish.
+	 */
+	final class PendingConfirm {
+
+		private final long _seqNo;
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private volatile boolean _acked;
+		private volatile ShutdownSignalException _shutdown;
+
+		private PendingConfirm(long seqNo) {
+			_seqNo = seqNo;
+		}
+
+		/**
+		 * Waits for the broker to ack or nack the publish.
+		 *
+		 * @param timeoutMillis maximum time to wait
+		 *
+		 * @return <code>true</code> if acked, <code>false</code> if nacked
+		 *
+		 * @throws InterruptedException if the thread is interrupted
+		 * @throws TimeoutException if the confirm isn't received in time
+		 * @throws IOException if the channel is closed before the confirm
+		 */
+		boolean await(long timeoutMillis) throws InterruptedException,
+			TimeoutException, IOException {
+			if (!_done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				forget(this);
+				throw new TimeoutException("No confirm for publish " + _seqNo);
+			}
+			if (_shutdown != null) {
+				throw new IOException("Channel closed before the confirm of "
+					+ "publish " + _seqNo, _shutdown);
+			}
+			return _acked;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.peerlez.rabbitmq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive token bucket limiting the publish rate of a connection and
+ * holding back publishes while the broker has blocked the connection, e.g.
+ * on a memory or disk alarm. Every block halves the allowed rate, which then
+ * recovers linearly to the maximum while the connection stays unblocked, so
+ * publishers slow down before the broker raises the next alarm.
+ *
+ * While blocked, publishes fail fast or park the caller for at most the
+ * blocked timeout, instead of hanging until the broker unblocks the
+ * connection.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class PublishRateLimiter {
+
+	// fraction of the maximum rate recovered per second after a block
+	private static final double RECOVERY_PER_SECOND = 0.1;
+	// the rate is never cut below this fraction of the maximum rate
+	private static final double MIN_RATE_FRACTION = 0.05;
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final double _maxRate;
+	private final double _burst;
+	private final long _blockedTimeoutMillis;
+
+	private double _rate;
+	private double _tokens;
+	private long _lastRefillNanos = System.nanoTime();
+	private boolean _blocked;
+	private String _blockedReason;
+	private long _blockedSinceNanos;
+	private long _blockedNanos;
+	private long _blockedCount;
+	private long _rejectedCount;
+
+	/**
+	 * Constructs new limiter.
+	 *
+	 * @param maxRate maximum publishes per second, or 0 for no rate limit
+	 * @param blockedTimeoutMillis maximum time a publish waits while the
+	 *            connection is blocked, or 0 to fail immediately
+	 */
+	public PublishRateLimiter(double maxRate, long blockedTimeoutMillis) {
+		_maxRate = maxRate;
+		// allows bursts of up to 100 ms worth of publishes
+		_burst = Math.max(1, maxRate / 10);
+		_blockedTimeoutMillis = blockedTimeoutMillis;
+		_rate = maxRate;
+		_tokens = _burst;
+	}
+
+	/**
+	 * Takes a permit to publish one message. Waits for a token if the rate
+	 * limit is reached, and for the connection to be unblocked if it's
+	 * blocked.
+	 *
+	 * @throws RabbitMqClientException if the connection is blocked and the
+	 *             blocked timeout passes; or if the thread is interrupted
+	 */
+	public synchronized void acquire() throws RabbitMqClientException {
+		try {
+			awaitUnblocked();
+			if (_maxRate <= 0) {
+				return;
+			}
+
+			refill(System.nanoTime());
+			while (_tokens < 1) {
+				long waitNanos = (long) ((1 - _tokens) / _rate * NANOS_PER_SECOND);
+				TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, waitNanos));
+				awaitUnblocked();
+				refill(System.nanoTime());
+			}
+			_tokens -= 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RabbitMqClientException("Interrupted waiting for "
+				+ "publish permit", e);
+		}
+	}
+
+	/**
+	 * Called when the broker blocks the connection.
+	 *
+	 * @param reason the reason given by the broker
+	 */
+	public synchronized void onBlocked(String reason) {
+		_blockedReason = reason;
+		if (_blocked) {
+			return;
+		}
+		refill(System.nanoTime());
+		_blocked = true;
+		_blockedCount++;
+		_blockedSinceNanos = System.nanoTime();
+		_rate = Math.max(_maxRate * MIN_RATE_FRACTION, _rate / 2);
+	}
+
+	/**
+	 * Called when the broker unblocks the connection.
+	 */
+	public synchronized void onUnblocked() {
+		if (!_blocked) {
+			return;
+		}
+		long now = System.nanoTime();
+		_blocked = false;
+		_blockedReason = null;
+		_blockedNanos += now - _blockedSinceNanos;
+		_lastRefillNanos = now;
+		notifyAll();
+	}
+
+	/**
+	 * Tells whether the broker has blocked the connection.
+	 *
+	 * @return <code>true</code> if blocked
+	 */
+	public synchronized boolean isBlocked() {
+		return _blocked;
+	}
+
+	/**
+	 * Gets the reason the broker gave for blocking the connection.
+	 *
+	 * @return The reason, or <code>null</code> if not blocked
+	 */
+	public synchronized String getBlockedReason() {
+		return _blockedReason;
+	}
+
+	/**
+	 * Gets the currently allowed publish rate.
+	 *
+	 * @return publishes per second, or 0 if the rate isn't limited
+	 */
+	public synchronized double getCurrentRate() {
+		if (_maxRate <= 0) {
+			return 0;
+		}
+		refill(System.nanoTime());
+		return _rate;
+	}
+
+	/**
+	 * Gets the number of times the broker has blocked the connection.
+	 *
+	 * @return The block count
+	 */
+	public synchronized long getBlockedCount() {
+		return _blockedCount;
+	}
+
+	/**
+	 * Gets the number of publishes failed because the connection was blocked.
+	 *
+	 * @return The rejected count
+	 */
+	public synchronized long getRejectedCount() {
+		return _rejectedCount;
+	}
+
+	/**
+	 * Gets the total time the connection has been blocked.
+	 *
+	 * @return The blocked time in milliseconds
+	 */
+	public synchronized long getBlockedMillis() {
+		long blockedNanos = _blockedNanos;
+		if (_blocked) {
+			blockedNanos += System.nanoTime() - _blockedSinceNanos;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("[blocked = %s, reason = %s, rate = %.1f, "
+			+ "blockedCount = %d, rejectedCount = %d, blockedMillis = %d]",
+			_blocked, _blockedReason, getCurrentRate(), _blockedCount,
+			_rejectedCount, getBlockedMillis());
+	}
+
+	/**
+	 * Waits until the connection is unblocked, at most the blocked timeout.
+	 *
+	 * @throws InterruptedException if the thread is interrupted
+	 * @throws RabbitMqClientException if the blocked timeout passes
+	 */
+	private void awaitUnblocked() throws InterruptedException,
+		RabbitMqClientException {
+
+		if (!_blocked) {
+			return;
+		}
+		long deadline = System.nanoTime()
+			+ TimeUnit.MILLISECONDS.toNanos(_blockedTimeoutMillis);
+		long remaining = deadline - System.nanoTime();
+		while (_blocked && remaining > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			remaining = deadline - System.nanoTime();
+		}
+		if (_blocked) {
+			_rejectedCount++;
+			throw new RabbitMqClientException("Connection blocked by broker: "
+				+ _blockedReason);
+		}
+	}
+
+	/**
+	 * Adds the tokens and the recovered rate accumulated since the last
+	 * refill.
+	 *
+	 * @param now current monotonic clock time
+	 */
+	private void refill(long now) {
+		double elapsedSeconds = (now - _lastRefillNanos) / NANOS_PER_SECOND;
+		_lastRefillNanos = now;
+		if (_blocked || _maxRate <= 0) {
+			return;
+		}
+		_rate = Math.min(_maxRate, _rate + _maxRate * RECOVERY_PER_SECOND
+			* elapsedSeconds);
+		_tokens = Math.min(_burst, _tokens + _rate * elapsedSeconds);
+	}
+}
@@ -1,17 +1,53 @@
 package com.peerlez.rabbitmq;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConnectionFactory;
 
 /**
  * Wrapper to ease of use to publish messages to message queues and to subscribe
  * consumers to Brokers(exchange).
  *
+ * By default every publish opens its own connection and closes it again.
+ * With {@link #setSharedPublishConnection(boolean)} publishes to a broker
+ * share one long-lived connection instead, so that its
+ * {@link PublishRateLimiter} sees the connection.blocked notifications of
+ * the broker and later publishes fail fast while the broker is blocked. The
+ * shared connections keep the JVM running until {@link #close()} closes
+ * them.
+ *
  * @author A.Sillanpaa
  *
  */
-public final class RabbitMq implements RabbitMqMessage {
+public final class RabbitMq implements RabbitMqMessage, Closeable {
+
+	private final ConnectionFactory _connectionFactory;
+	private final ConcurrentMap<String, RabbitMqConnectionFactory> _publishConnections =
+		new ConcurrentHashMap<>();
+	private volatile boolean _sharedPublishConnection;
+
+	/**
+	 * Constructs instance connecting to the broker given on each call.
+	 */
+	public RabbitMq() {
+		_connectionFactory = null;
+	}
+
+	/**
+	 * Constructs instance establishing every connection with the given
+	 * {@link ConnectionFactory}, e.g. one connecting to an in-process
+	 * stand-in broker. The {@link RabbitMqConnection} given on each call is
+	 * then ignored.
+	 *
+	 * @param connectionFactory the factory to establish connections with
+	 */
+	public RabbitMq(ConnectionFactory connectionFactory) {
+		_connectionFactory = connectionFactory;
+	}
 
 	/**
 	 * Publish messages to queues.
@@ -24,8 +60,10 @@ public final class RabbitMq implements RabbitMqMessage {
 	public void publish(Message message, RabbitMqConnection connection) 
 			throws RabbitMqClientException {
 
-		RabbitMqConnectionFactory rabbitMqConnection = new 
-				RabbitMqConnectionFactory(connection.getConnectionUri());
+		boolean shared = _sharedPublishConnection;
+		RabbitMqConnectionFactory rabbitMqConnection = shared
+				? publishConnection(connection)
+				: newConnectionFactory(connection);
 		rabbitMqConnection.newConnection();
 
 		try {
@@ -33,8 +71,67 @@ public final class RabbitMq implements RabbitMqMessage {
 		} catch (IOException e) {
 			throw new RabbitMqClientException("cant publish messages", e);
 		} finally {
+			if (!shared) {
+				rabbitMqConnection.close();
+			}
+		}
+	}
+
+	/**
+	 * Sets whether publishes to a broker share one long-lived connection
+	 * instead of opening and closing a connection per publish. The shared
+	 * connections must be closed with {@link #close()}. Turning sharing off
+	 * closes them.
+	 *
+	 * @param sharedPublishConnection <code>true</code> to share a connection
+	 *            per broker
+	 */
+	public void setSharedPublishConnection(boolean sharedPublishConnection) {
+		_sharedPublishConnection = sharedPublishConnection;
+		if (!sharedPublishConnection) {
+			close();
+		}
+	}
+
+	/**
+	 * Gets the limiter the publishes to the given broker go through.
+	 *
+	 * @param connection the broker
+	 *
+	 * @return The publish rate limiter
+	 *
+	 * @throws IllegalStateException if the publishes don't share a
+	 *             connection
+	 */
+	public PublishRateLimiter getRateLimiter(RabbitMqConnection connection) {
+		return sharedPublishConnection(connection).getRateLimiter();
+	}
+
+	/**
+	 * Sets the limiter the publishes to the given broker go through.
+	 *
+	 * @param connection the broker
+	 * @param rateLimiter the publish rate limiter
+	 *
+	 * @throws IllegalStateException if the publishes don't share a
+	 *             connection
+	 */
+	public void setRateLimiter(RabbitMqConnection connection,
+			PublishRateLimiter rateLimiter) {
+		sharedPublishConnection(connection).setRateLimiter(rateLimiter);
+	}
+
+	/**
+	 * Closes the shared connections used for publishing. Later publishes
+	 * open new ones.
+	 */
+	@Override
+	public void close() {
+		for (RabbitMqConnectionFactory rabbitMqConnection : _publishConnections
+				.values()) {
 			rabbitMqConnection.close();
 		}
+		_publishConnections.clear();
 	}
 
 	/**
@@ -52,8 +149,8 @@ public final class RabbitMq implements RabbitMqMessage {
 	public Channel subscribe(String exchangeName, String routingKey, 
 			RabbitMqConnection connection) throws RabbitMqClientException {
 		
-		RabbitMqConnectionFactory rabbitMqConnection = new 
-				RabbitMqConnectionFactory(connection.getConnectionUri());
+		RabbitMqConnectionFactory rabbitMqConnection = 
+				newConnectionFactory(connection);
 		rabbitMqConnection.newConnection();
 		Channel channel = rabbitMqConnection.newChannel();
 
@@ -66,4 +163,63 @@ public final class RabbitMq implements RabbitMqMessage {
 		}
 		return channel;
 	}
+
+	/**
+	 * Gets the shared connection factory publishing to the given broker.
+	 *
+	 * @param connection the broker to connect to
+	 *
+	 * @return The shared {@link RabbitMqConnectionFactory}
+	 *
+	 * @throws IllegalStateException if the publishes don't share a
+	 *             connection
+	 */
+	private RabbitMqConnectionFactory sharedPublishConnection(
+			RabbitMqConnection connection) {
+		if (!_sharedPublishConnection) {
+			// a per-publish connection never sees the blocked notifications
+			throw new IllegalStateException("Rate limiting requires a shared "
+				+ "publish connection");
+		}
+		return publishConnection(connection);
+	}
+
+	/**
+	 * Gets the long-lived connection factory publishing to the given broker.
+	 *
+	 * @param connection the broker to connect to
+	 *
+	 * @return The shared {@link RabbitMqConnectionFactory}
+	 */
+	private RabbitMqConnectionFactory publishConnection(
+			RabbitMqConnection connection) {
+		String key = _connectionFactory != null ? "" : connection
+			.getConnectionUri();
+		RabbitMqConnectionFactory rabbitMqConnection = _publishConnections
+			.get(key);
+		if (rabbitMqConnection == null) {
+			rabbitMqConnection = newConnectionFactory(connection);
+			RabbitMqConnectionFactory existing = _publishConnections
+				.putIfAbsent(key, rabbitMqConnection);
+			if (existing != null) {
+				rabbitMqConnection = existing;
+			}
+		}
+		return rabbitMqConnection;
+	}
+
+	/**
+	 * Creates the connection factory for one call.
+	 *
+	 * @param connection the broker to connect to
+	 *
+	 * @return new {@link RabbitMqConnectionFactory}
+	 */
+	private RabbitMqConnectionFactory newConnectionFactory(
+			RabbitMqConnection connection) {
+		if (_connectionFactory != null) {
+			return new RabbitMqConnectionFactory(_connectionFactory);
+		}
+		return new RabbitMqConnectionFactory(connection.getConnectionUri());
+	}
 }
\ No newline at end of file
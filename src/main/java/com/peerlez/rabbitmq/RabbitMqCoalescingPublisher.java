@@ -0,0 +1,355 @@
+package com.peerlez.rabbitmq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Publisher packing small messages headed to the same exchange and routing
+ * key into a single AMQP message. An envelope is published once it reaches
+ * the size threshold or once its first message has waited for the linger
+ * time. {@link RabbitMqConsumer} unpacks envelopes and calls
+ * {@link RabbitMqConsumer#handleMessage(Message)} for every packed message.
+ * The packed messages are acknowledged together, so a consumer failing on
+ * one of them receives the envelope again, including the messages it
+ * already handled, unless its {@link RetryPolicy} retries only the rest,
+ * see {@link RabbitMqConsumer#setRetryPolicy(RetryPolicy)}.
+ *
+ * Each packed body is the one {@link RabbitMqPublish} would publish for the
+ * message. Only messages with the same delivery mode, priority, expiration,
+ * content type and content encoding share an envelope, and the envelope
+ * carries those properties. Messages with per-message properties, i.e. any
+ * headers, message id, correlation id, reply-to, timestamp, type, user id,
+ * app id or cluster id, are never packed but published directly.
+ *
+ * With latency stamping enabled, see
+ * {@link RabbitMqPublish#setLatencyStamping(String)}, an envelope is stamped
+ * when its first message is sent, so the recorded latency includes the time
+ * the envelope lingered.
+ *
+ * If publishing a lingering envelope fails on the linger timer, its
+ * messages are lost and the failure is thrown from the next call to
+ * {@link #send(Message)}, {@link #flush()} or {@link #close()}.
+ *
+ * Once closed, the publisher can't be used anymore.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RabbitMqCoalescingPublisher {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(RabbitMqCoalescingPublisher.class);
+
+	private final RabbitMqConnectionFactory _rabbitMqConnection;
+	private final int _maxEnvelopeBytes;
+	private final long _lingerMillis;
+	private final Map<String, Envelope> _envelopes = new HashMap<>();
+	private final ScheduledThreadPoolExecutor _lingerScheduler;
+	private RabbitMqClientException _lingerFailure;
+	private boolean _closed;
+
+	/**
+	 * Constructs new coalescing publisher.
+	 *
+	 * @param rabbitMqConnection The {@link RabbitMqConnectionFactory} to
+	 *            provide the channel where to publish messages
+	 * @param maxEnvelopeBytes size in bytes at which an envelope is published.
+	 *            Messages that don't fit in an envelope on their own are
+	 *            published directly.
+	 * @param lingerMillis maximum time a message waits in an envelope before
+	 *            it's published
+	 */
+	public RabbitMqCoalescingPublisher(
+		RabbitMqConnectionFactory rabbitMqConnection, int maxEnvelopeBytes,
+		long lingerMillis) {
+		_rabbitMqConnection = rabbitMqConnection;
+		_maxEnvelopeBytes = maxEnvelopeBytes;
+		_lingerMillis = lingerMillis;
+
+		_lingerScheduler = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable,
+						"rabbitmq-coalescing-linger");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		_lingerScheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Adds the message to the envelope of its exchange and routing key.
+	 *
+	 * @param message Message to be published
+	 *
+	 * @throws IOException if an I/O problem is encountered publishing a full
+	 *             envelope
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if a lingering envelope was lost since the last call
+	 * @throws IllegalStateException if the publisher is closed
+	 */
+	public synchronized void send(Message message) throws IOException,
+		RabbitMqClientException {
+
+		checkOpen();
+		throwLingerFailure();
+
+		byte[] body = RabbitMqPublish.toBody(message);
+		int packedBytes = MessageEnvelope.LENGTH_PREFIX_BYTES + body.length;
+
+		BasicProperties properties = message.getBasicProperties();
+		if (packedBytes > _maxEnvelopeBytes || !isCoalescable(properties)) {
+			RabbitMqPublish.instance().send(message, _rabbitMqConnection);
+			return;
+		}
+
+		final String key = envelopeKey(message);
+		Envelope envelope = _envelopes.get(key);
+
+		if (envelope != null
+			&& envelope._buffer.size() + packedBytes > _maxEnvelopeBytes) {
+			publish(key, envelope);
+			envelope = null;
+		}
+
+		if (envelope == null) {
+			envelope = new Envelope(message);
+			_envelopes.put(key, envelope);
+			final Envelope lingering = envelope;
+			envelope._linger = _lingerScheduler.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					flushLingering(key, lingering);
+				}
+			}, _lingerMillis, TimeUnit.MILLISECONDS);
+		}
+
+		envelope.add(body);
+
+		if (envelope._buffer.size() >= _maxEnvelopeBytes) {
+			publish(key, envelope);
+		}
+	}
+
+	/**
+	 * Publishes all pending envelopes.
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if a lingering envelope was lost since the last call
+	 * @throws IllegalStateException if the publisher is closed
+	 */
+	public synchronized void flush() throws IOException,
+		RabbitMqClientException {
+
+		checkOpen();
+		flushPending();
+	}
+
+	/**
+	 * Publishes all pending envelopes and stops the linger timer. Does
+	 * nothing if the publisher is already closed.
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if a lingering envelope was lost since the last call
+	 */
+	public synchronized void close() throws IOException,
+		RabbitMqClientException {
+
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		try {
+			flushPending();
+		} finally {
+			_lingerScheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Publishes all pending envelopes.
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if a lingering envelope was lost since the last call
+	 */
+	private void flushPending() throws IOException, RabbitMqClientException {
+
+		throwLingerFailure();
+
+		List<String> keys = new ArrayList<>(_envelopes.keySet());
+		for (String key : keys) {
+			publish(key, _envelopes.get(key));
+		}
+	}
+
+	/**
+	 * Checks that the publisher isn't closed.
+	 *
+	 * @throws IllegalStateException if the publisher is closed
+	 */
+	private void checkOpen() throws IllegalStateException {
+		if (_closed) {
+			throw new IllegalStateException("Coalescing publisher is closed");
+		}
+	}
+
+	/**
+	 * Publishes the envelope if it's still pending once its linger time has
+	 * passed.
+	 *
+	 * @param key exchange and routing key of the envelope
+	 * @param envelope the lingering envelope
+	 */
+	private synchronized void flushLingering(String key, Envelope envelope) {
+		if (_envelopes.get(key) != envelope) {
+			return;
+		}
+		try {
+			publish(key, envelope);
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Unable to publish coalesced messages to: {}",
+				envelope._exchange, e);
+			if (_lingerFailure == null) {
+				_lingerFailure = new RabbitMqClientException("Lost "
+					+ envelope._count + " coalesced messages to: "
+					+ envelope._exchange, e);
+			} else {
+				_lingerFailure.addSuppressed(e);
+			}
+		}
+	}
+
+	/**
+	 * Throws the failure of a lingering envelope publish, once.
+	 *
+	 * @throws RabbitMqClientException if a lingering envelope was lost
+	 */
+	private void throwLingerFailure() throws RabbitMqClientException {
+		RabbitMqClientException failure = _lingerFailure;
+		if (failure != null) {
+			_lingerFailure = null;
+			throw failure;
+		}
+	}
+
+	/**
+	 * Tells whether a message with the given properties can share an
+	 * envelope, i.e. it has no per-message properties.
+	 *
+	 * @param properties properties of the message
+	 *
+	 * @return <code>true</code> if the message can be packed
+	 */
+	private static boolean isCoalescable(BasicProperties properties) {
+		return properties == null
+			|| (properties.getHeaders() == null || properties.getHeaders()
+				.isEmpty())
+			&& properties.getMessageId() == null
+			&& properties.getCorrelationId() == null
+			&& properties.getReplyTo() == null
+			&& properties.getTimestamp() == null
+			&& properties.getType() == null
+			&& properties.getUserId() == null
+			&& properties.getAppId() == null
+			&& properties.getClusterId() == null;
+	}
+
+	/**
+	 * Gets the key of the envelope of the given message, i.e. its exchange,
+	 * routing key and the properties the envelope carries.
+	 *
+	 * @param message the message
+	 *
+	 * @return The envelope key
+	 */
+	private static String envelopeKey(Message message) {
+		StringBuilder key = new StringBuilder(message.getExchange())
+			.append('\u0000').append(message.getRoutingKey());
+		BasicProperties properties = message.getBasicProperties();
+		if (properties != null) {
+			key.append('\u0000').append(properties.getDeliveryMode())
+				.append('\u0000').append(properties.getPriority())
+				.append('\u0000').append(properties.getExpiration())
+				.append('\u0000').append(properties.getContentType())
+				.append('\u0000').append(properties.getContentEncoding());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Removes the envelope from the pending ones and publishes it.
+	 *
+	 * @param key exchange and routing key of the envelope
+	 * @param envelope the envelope to publish
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails
+	 */
+	private void publish(String key, Envelope envelope) throws IOException,
+		RabbitMqClientException {
+
+		_envelopes.remove(key);
+		envelope._linger.cancel(false);
+
+		RabbitMqPublish.instance().publish(envelope._exchange,
+			envelope._routingKey, envelope.properties(),
+			envelope._buffer.toByteArray(), _rabbitMqConnection, true);
+
+		LOG.debug("RabbitMQ coalesced {} messages to: {}", envelope._count,
+			envelope._exchange);
+	}
+
+	/**
+	 * Messages packed for one exchange and routing key.
+	 */
+	private static final class Envelope {
+
+		private final String _exchange;
+		private final String _routingKey;
+		private final BasicProperties _properties;
+		private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+		private final DataOutputStream _output = new DataOutputStream(_buffer);
+		private int _count;
+		private ScheduledFuture<?> _linger;
+
+		private Envelope(Message first) {
+			_exchange = first.getExchange();
+			_routingKey = first.getRoutingKey();
+			_properties = RabbitMqPublish.instance().stampLatency(
+				first.getBasicProperties() == null
+					? new BasicProperties.Builder().build() : first
+						.getBasicProperties());
+		}
+
+		private void add(byte[] body) throws IOException {
+			_output.writeInt(body.length);
+			_output.write(body);
+			_count++;
+		}
+
+		private BasicProperties properties() {
+			return MessageEnvelope.envelopeProperties(_properties, _count);
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.security.NoSuchAlgorithmException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.rabbitmq.client.BlockedListener;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -26,8 +27,11 @@ public class RabbitMqConnectionFactory {
 
 	private Connection _connection;
 	private Channel _channel;
+	private PublishConfirms _publishConfirms;
 	private ConnectionFactory _factory;
 	private String _connectionUri;
+	private volatile PublishRateLimiter _rateLimiter =
+		new PublishRateLimiter(0, 0);
 
 	/**
 	 * Constructor to get the AMQP URI to establish new connections.
@@ -40,6 +44,17 @@ public class RabbitMqConnectionFactory {
 		_connectionUri = connectionUri;
 	}
 
+	/**
+	 * Constructor to establish new connections with the given, already
+	 * configured, {@link ConnectionFactory}, e.g. one connecting to an
+	 * in-process stand-in broker.
+	 *
+	 * @param factory the factory to establish connections with
+	 */
+	public RabbitMqConnectionFactory(ConnectionFactory factory) {
+		_factory = factory;
+	}
+
 	/**
 	 * Gets a new connection from the {@link ConnectionFactory}. As this factory
 	 * only provides one connection. Every subsequent call will return the same
@@ -49,7 +64,8 @@ public class RabbitMqConnectionFactory {
 	 *
 	 * @throws RabbitMqClientException if establishing a new connection fail
 	 */
-	public Connection newConnection() throws RabbitMqClientException {
+	public synchronized Connection newConnection()
+		throws RabbitMqClientException {
 		if (_connection == null || !_connection.isOpen()) {
 			establishConnection();
 		}
@@ -63,7 +79,7 @@ public class RabbitMqConnectionFactory {
 	 *
 	 * @throws RabbitMqClientException if establishing a new channel fails
 	 */
-	public Channel newChannel() throws RabbitMqClientException {
+	public synchronized Channel newChannel() throws RabbitMqClientException {
 		if (_channel == null || !_channel.isOpen()) {
 			try {
 				establishChannel();
@@ -76,11 +92,54 @@ public class RabbitMqConnectionFactory {
 		return _channel;
 	}
 
+	/**
+	 * Gets the publisher confirms of the channel. Puts the channel to confirm
+	 * mode on first use, and again after the channel is re-established.
+	 *
+	 * @return The publisher confirms of the channel
+	 *
+	 * @throws RabbitMqClientException if establishing a new channel or
+	 *             enabling confirms fails
+	 */
+	synchronized PublishConfirms publishConfirms()
+		throws RabbitMqClientException {
+		Channel channel = newChannel();
+		if (_publishConfirms == null || _publishConfirms.getChannel() != channel) {
+			try {
+				_publishConfirms = new PublishConfirms(channel);
+			} catch (IOException e) {
+				throw new RabbitMqClientException("Unable to enable publish "
+					+ "confirms", e);
+			}
+		}
+		return _publishConfirms;
+	}
+
+	/**
+	 * Gets the limiter every publish on this connection goes through. By
+	 * default it doesn't limit the rate and fails publishes immediately while
+	 * the broker has blocked the connection.
+	 *
+	 * @return The publish rate limiter
+	 */
+	public PublishRateLimiter getRateLimiter() {
+		return _rateLimiter;
+	}
+
+	/**
+	 * Sets the limiter every publish on this connection goes through.
+	 *
+	 * @param rateLimiter the publish rate limiter
+	 */
+	public void setRateLimiter(PublishRateLimiter rateLimiter) {
+		_rateLimiter = rateLimiter;
+	}
+
 	/**
 	 * Close the channel {@link Channel} and the underlying connection
 	 * {@link Connection}.
 	 */
-	protected void close() {
+	protected synchronized void close() {
 		channelClose();
 		connectionClose();
 	}
@@ -96,12 +155,17 @@ public class RabbitMqConnectionFactory {
 	 */
 	private void establishConnection() throws RabbitMqClientException {
 		try {
-			setConnectionURI();
+			if (_connectionUri != null) {
+				setConnectionURI();
+			}
 			_connection = _factory.newConnection();
+			// a new connection starts unblocked
+			_rateLimiter.onUnblocked();
+			_connection.addBlockedListener(new FlowControlListener());
 
 		} catch (IOException e) {
 			throw new RabbitMqClientException("Failed to establish "
-				+ "connection to: " + _connection.getAddress(), e);
+				+ "connection to: " + _factory.getHost(), e);
 		}
 	}
 
@@ -179,4 +243,23 @@ public class RabbitMqConnectionFactory {
 			}
 		}
 	}
+
+	/**
+	 * Forwards the connection.blocked and connection.unblocked notifications
+	 * of the broker to the rate limiter.
+	 */
+	private final class FlowControlListener implements BlockedListener {
+
+		@Override
+		public void handleBlocked(String reason) throws IOException {
+			LOG.warn("Connection blocked by broker: {}", reason);
+			_rateLimiter.onBlocked(reason);
+		}
+
+		@Override
+		public void handleUnblocked() throws IOException {
+			LOG.info("Connection unblocked by broker");
+			_rateLimiter.onUnblocked();
+		}
+	}
 }
\ No newline at end of file
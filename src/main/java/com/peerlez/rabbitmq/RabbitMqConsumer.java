@@ -1,6 +1,12 @@
 package com.peerlez.rabbitmq;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +15,7 @@ import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ReturnListener;
 import com.rabbitmq.client.ShutdownSignalException;
 
 /**
@@ -25,8 +32,19 @@ public abstract class RabbitMqConsumer extends DefaultConsumer {
 	private static final Logger LOG = LoggerFactory
 		.getLogger(RabbitMqConsumer.class);
 
+	private static final long RETRY_CONFIRM_TIMEOUT_MILLIS = 5000;
+
 	private Channel _channel;
+	private String _queueName;
 	private volatile String _consumerTag;
+	private volatile MessagePool _messagePool;
+	private final HandlerExecution _handlerExecution;
+	private volatile LatencyTracker _latencyTracker;
+	private volatile RetryPolicy _retryPolicy;
+	private volatile boolean _requeueOnFailure = true;
+	private final Object _retryLock = new Object();
+	private Channel _retryChannel;
+	private volatile boolean _retryReturned;
 	private boolean autoAck = false;
 
 	/**
@@ -38,8 +56,69 @@ public abstract class RabbitMqConsumer extends DefaultConsumer {
 	 * @throws IOException if an error is encountered
 	 */
 	public RabbitMqConsumer(Channel channel) throws IOException {
+		this(channel, null);
+	}
+
+	/**
+	 * Constructs new instance of {@link DefaultConsumer} consuming the given
+	 * queue on the given {@link Channel}.
+	 *
+	 * @param channel Channel to use by the Consumer
+	 * @param queueName name of the queue to consume, or <code>null</code> to
+	 *            consume a new server-named queue
+	 *
+	 * @throws IOException if an error is encountered
+	 */
+	public RabbitMqConsumer(Channel channel, String queueName)
+		throws IOException {
+		this(channel, queueName, null, 0);
+	}
+
+	/**
+	 * Constructs new instance of {@link DefaultConsumer} consuming the given
+	 * queue on the given {@link Channel} and running
+	 * {@link #handleMessage(Message)} on the given executor instead of the
+	 * client dispatch thread, e.g. on virtual threads from
+	 * {@link RabbitMqExecutors#newVirtualThreadExecutor()}. Sets the prefetch
+	 * count of this consumer to <code>maxConcurrency</code> before consuming,
+	 * and allows at most that many handlers to run at once. Deliveries are
+	 * handled and acknowledged out of order in this mode.
+	 *
+	 * Handlers running concurrently share the channel; publishes made by a
+	 * handler on {@link #getChannel()} must be synchronized on the channel.
+	 * Without a retry policy a delivery whose handler throws is rejected, see
+	 * {@link #setRequeueOnFailure(boolean)}.
+	 *
+	 * @param channel Channel to use by the Consumer
+	 * @param queueName name of the queue to consume, or <code>null</code> to
+	 *            consume a new server-named queue
+	 * @param executor the executor to run the handlers on, or
+	 *            <code>null</code> to run them on the dispatch thread
+	 * @param maxConcurrency maximum number of concurrently running handlers,
+	 *            at least one. Ignored without an executor.
+	 *
+	 * @throws IOException if an error is encountered
+	 * @throws IllegalArgumentException if an executor is given and
+	 *             <code>maxConcurrency</code> is less than one
+	 */
+	public RabbitMqConsumer(Channel channel, String queueName,
+		ExecutorService executor, int maxConcurrency) throws IOException {
 		super(channel);
+		if (executor != null && maxConcurrency < 1) {
+			// a zero prefetch count would mean unlimited deliveries
+			throw new IllegalArgumentException("maxConcurrency must be at "
+				+ "least 1: " + maxConcurrency);
+		}
 		_channel = channel;
+		_queueName = queueName;
+		if (executor == null) {
+			_handlerExecution = null;
+		} else {
+			// the prefetch count only applies to consumers started after it,
+			// so it must be set before consuming
+			_channel.basicQos(maxConcurrency);
+			_handlerExecution = new HandlerExecution(executor, maxConcurrency);
+		}
 		basicConsume();
 	}
 
@@ -90,19 +169,293 @@ public abstract class RabbitMqConsumer extends DefaultConsumer {
 	 * Handles a message delivery from the broker.
 	 */
 	@Override
-	public void handleDelivery(String consumerTag, Envelope envelope,
-		BasicProperties properties, byte[] body) throws IOException {
+	public void handleDelivery(final String consumerTag,
+		final Envelope envelope, final BasicProperties properties,
+		final byte[] body) throws IOException {
 
 		LOG.debug("Consumer: {} Received handle delivery", consumerTag);
 
-		Message message = new Message(properties, body, envelope.getExchange(),
-			envelope.getRoutingKey(), envelope.getDeliveryTag());
+		final long deliveredNanos = System.nanoTime();
+		LatencyTracker latencyTracker = _latencyTracker;
+		// the publish to deliver time of a retried delivery includes the
+		// retry delay, so only its first delivery is recorded
+		if (latencyTracker != null && RetryPolicy.getAttempt(properties) == 0) {
+			latencyTracker.recordDelivery(envelope.getExchange(),
+				envelope.getRoutingKey(), properties, deliveredNanos);
+		}
+
+		final HandlerExecution execution = _handlerExecution;
+		if (execution == null) {
+			processDelivery(consumerTag, envelope, properties, body,
+				deliveredNanos, true);
+			return;
+		}
+
+		// blocks the dispatch thread only if the broker sends more than the
+		// prefetch count, so handlers never outnumber the permits
+		execution._permits.acquireUninterruptibly();
+		try {
+			execution._executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						processDelivery(consumerTag, envelope, properties,
+							body, deliveredNanos, false);
+					} catch (IOException | RuntimeException e) {
+						LOG.error("Consumer: {} Failed to handle message: {}",
+							consumerTag, envelope.getDeliveryTag(), e);
+					} finally {
+						execution._permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			execution._permits.release();
+			throw new RabbitMqClientException("Handler executor rejected "
+				+ "delivery: " + envelope.getDeliveryTag(), e);
+		}
+	}
+
+	/**
+	 * Wraps the delivery to a {@link Message}, handles it and acknowledges it.
+	 *
+	 * @param consumerTag the consumer tag associated with the consumer
+	 * @param envelope packaging data for the message
+	 * @param properties content header data for the message
+	 * @param body the message body
+	 * @param deliveredNanos monotonic clock time of the delivery
+	 * @param ackMultiple whether the ack covers all earlier deliveries too.
+	 *            Only valid when deliveries are handled in order.
+	 *
+	 * @throws IOException if the acknowledgement or scheduling the retry
+	 *             fails
+	 */
+	private void processDelivery(String consumerTag, Envelope envelope,
+		BasicProperties properties, byte[] body, long deliveredNanos,
+		boolean ackMultiple) throws IOException {
+
+		MessagePool messagePool = _messagePool;
 
 		LOG.info("Consumer: {} Received message: {}", consumerTag,
 			envelope.getDeliveryTag());
 
-		handleMessage(message);
-		_channel.basicAck(envelope.getDeliveryTag(), true);
+		// retried deliveries come back from the delay queue, the handler sees
+		// where they were published to originally
+		String exchange = RetryPolicy.getOriginalExchange(properties,
+			envelope.getExchange());
+		String routingKey = RetryPolicy.getOriginalRoutingKey(properties,
+			envelope.getRoutingKey());
+
+		// packed messages handled before a failure, and the bytes they take
+		int handledCount = 0;
+		int handledBytes = 0;
+		try {
+			if (MessageEnvelope.isEnvelope(properties)) {
+				// checked up front, so that no packed message is handled
+				// twice when a malformed envelope is retried
+				MessageEnvelope.checkFraming(properties, body);
+				BasicProperties packedProperties = MessageEnvelope
+					.packedProperties(properties);
+
+				// one ack covers every message packed in the envelope
+				ByteBuffer packed = ByteBuffer.wrap(body);
+				while (packed.hasRemaining()) {
+					int length = packed.getInt();
+					int offset = packed.position();
+					packed.position(offset + length);
+					handleBody(messagePool, envelope, exchange, routingKey,
+						packedProperties, body, offset, length);
+					handledCount++;
+					handledBytes = packed.position();
+				}
+			} else {
+				handleBody(messagePool, envelope, exchange, routingKey,
+					properties, body, 0, body.length);
+			}
+		} catch (RuntimeException e) {
+			RetryPolicy retryPolicy = _retryPolicy;
+			if (retryPolicy == null) {
+				if (_handlerExecution == null) {
+					throw e;
+				}
+				// nothing closes the channel for a handler failing on the
+				// executor, so the delivery is rejected to free its prefetch
+				// slot instead of leaving it unacknowledged
+				boolean requeue = _requeueOnFailure;
+				LOG.error("Consumer: {} Failed to handle message: {}, {}",
+					consumerTag, envelope.getDeliveryTag(), requeue
+						? "requeued" : "rejected", e);
+				_channel.basicReject(envelope.getDeliveryTag(), requeue);
+				return;
+			}
+			// only the failed packed message and the ones after it are
+			// retried, so that the handled ones aren't handled again
+			BasicProperties retryProperties = properties;
+			byte[] retryBody = body;
+			if (handledCount > 0) {
+				retryProperties = MessageEnvelope.remainderProperties(
+					properties, handledCount);
+				retryBody = Arrays.copyOfRange(body, handledBytes,
+					body.length);
+			}
+			boolean retried;
+			try {
+				retried = republish(retryPolicy, envelope, retryProperties,
+					retryBody, e);
+			} catch (IOException publishFailure) {
+				// acking now would lose the message, so it's delivered again
+				LOG.error("Consumer: {} Failed to handle message: {}, "
+					+ "requeued as the retry wasn't published", consumerTag,
+					envelope.getDeliveryTag(), publishFailure);
+				_channel.basicNack(envelope.getDeliveryTag(), false, true);
+				return;
+			}
+			LOG.warn("Consumer: {} Failed to handle message: {}, {}",
+				consumerTag, envelope.getDeliveryTag(), retried
+					? "scheduled for retry" : "parked", e);
+		}
+		_channel.basicAck(envelope.getDeliveryTag(), ackMultiple);
+
+		LatencyTracker latencyTracker = _latencyTracker;
+		if (latencyTracker != null) {
+			latencyTracker.recordAck(exchange, routingKey, deliveredNanos);
+		}
+	}
+
+	/**
+	 * Republishes the failed delivery with the retry policy on the retry
+	 * channel and waits for the broker to confirm it, so that the delivery is
+	 * only acknowledged once its retry is queued.
+	 *
+	 * @param retryPolicy the retry policy
+	 * @param envelope packaging data of the failed delivery
+	 * @param properties content header data of the message to retry
+	 * @param body body of the message to retry
+	 * @param error the failure
+	 *
+	 * @return <code>true</code> if the message was scheduled for a retry,
+	 *         <code>false</code> if it was parked
+	 *
+	 * @throws IOException if the publish fails, is returned as unroutable,
+	 *             is nacked or isn't confirmed in time
+	 */
+	private boolean republish(RetryPolicy retryPolicy, Envelope envelope,
+		BasicProperties properties, byte[] body, Throwable error)
+		throws IOException {
+
+		// handlers may run concurrently, the retries are published one at a
+		// time so that each waits only for its own confirm and return
+		synchronized (_retryLock) {
+			Channel channel = retryChannel();
+			_retryReturned = false;
+			boolean retried = retryPolicy.retry(channel, _queueName,
+				envelope, properties, body, error);
+
+			boolean confirmed;
+			try {
+				confirmed = channel
+					.waitForConfirms(RETRY_CONFIRM_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				confirmed = false;
+			} catch (TimeoutException e) {
+				confirmed = false;
+			}
+			if (!confirmed) {
+				// a late confirm can't be told apart from the next one
+				closeRetryChannel();
+				throw new IOException("Retry of message "
+					+ envelope.getDeliveryTag() + " not confirmed");
+			}
+			// the broker returns an unroutable publish before confirming it
+			if (_retryReturned) {
+				// the delay or parking queue is gone, e.g. deleted by hand
+				retryPolicy.declare(channel, _queueName);
+				throw new IOException("Retry of message "
+					+ envelope.getDeliveryTag() + " returned as unroutable");
+			}
+			return retried;
+		}
+	}
+
+	/**
+	 * Gets the channel the retries are published on, opening it in confirm
+	 * mode on the connection of the consumer channel if needed.
+	 *
+	 * @return The retry channel
+	 *
+	 * @throws IOException if opening the channel fails
+	 */
+	private Channel retryChannel() throws IOException {
+		if (_retryChannel == null || !_retryChannel.isOpen()) {
+			Channel channel = _channel.getConnection().createChannel();
+			if (channel == null) {
+				throw new IOException("No channel available for retries");
+			}
+			channel.addReturnListener(new ReturnListener() {
+
+				@Override
+				public void handleReturn(int replyCode, String replyText,
+					String exchange, String routingKey,
+					BasicProperties properties, byte[] body) {
+					_retryReturned = true;
+				}
+			});
+			channel.confirmSelect();
+			_retryChannel = channel;
+		}
+		return _retryChannel;
+	}
+
+	/**
+	 * Closes the retry channel, so that the next retry opens a new one.
+	 */
+	private void closeRetryChannel() {
+		try {
+			_retryChannel.abort();
+		} catch (IOException e) {
+			LOG.debug("Unable to close retry channel", e);
+		}
+		_retryChannel = null;
+	}
+
+	/**
+	 * Wraps the body to a {@link Message} and hands it to
+	 * {@link #handleMessage(Message)}.
+	 *
+	 * @param messagePool pool to take the message from, or <code>null</code>
+	 *            to allocate a new message
+	 * @param envelope packaging data for the message
+	 * @param exchange exchange the message was published to
+	 * @param routingKey routing key the message was published with
+	 * @param properties content header data for the message
+	 * @param body array holding the message body
+	 * @param offset offset of the body in the array
+	 * @param length length of the body
+	 */
+	private void handleBody(MessagePool messagePool, Envelope envelope,
+		String exchange, String routingKey, BasicProperties properties,
+		byte[] body, int offset, int length) {
+
+		Message message;
+		if (messagePool == null) {
+			byte[] content = offset == 0 && length == body.length ? body
+				: Arrays.copyOfRange(body, offset, offset + length);
+			message = new Message(properties, content, exchange, routingKey,
+				envelope.getDeliveryTag());
+		} else {
+			message = messagePool.acquire(properties, body, offset, length,
+				exchange, routingKey, envelope.getDeliveryTag());
+		}
+
+		try {
+			handleMessage(message);
+		} finally {
+			if (messagePool != null) {
+				messagePool.release(message);
+			}
+		}
 	}
 
 	/**
@@ -112,8 +465,96 @@ public abstract class RabbitMqConsumer extends DefaultConsumer {
 	 */
 	public void basicConsume() throws IOException {
 
-		_channel
-			.basicConsume(_channel.queueDeclare().getQueue(), autoAck, this);
+		if (_queueName == null) {
+			_queueName = _channel.queueDeclare().getQueue();
+		}
+		_channel.basicConsume(_queueName, autoAck, this);
+	}
+
+	/**
+	 * Enables the low-allocation consume mode. Deliveries are wrapped to
+	 * recycled messages taken from the given pool instead of new
+	 * {@link Message} instances. The handler must not keep a reference to the
+	 * message, or to its body buffer, after
+	 * {@link #handleMessage(Message)} returns.
+	 *
+	 * The pool only saves the {@link Message} instance, and the copy of each
+	 * body sliced from a coalesced envelope. The client still allocates the
+	 * delivered body array, properties and envelope of every delivery, so the
+	 * GC savings are small for deliveries carrying a single message. An
+	 * off-heap pool adds a copy of every body.
+	 *
+	 * @param messagePool the pool to use, or <code>null</code> to allocate a
+	 *            new message per delivery
+	 */
+	public void setMessagePool(MessagePool messagePool) {
+		_messagePool = messagePool;
+	}
+
+	/**
+	 * Enables recording the end-to-end latency of the deliveries published
+	 * with latency stamping, see
+	 * {@link RabbitMqPublish#setLatencyStamping(String)}.
+	 *
+	 * @param latencyTracker the tracker to record to, or <code>null</code> to
+	 *            disable recording
+	 */
+	public void setLatencyTracker(LatencyTracker latencyTracker) {
+		_latencyTracker = latencyTracker;
+	}
+
+	/**
+	 * Enables delayed retries of the deliveries whose handler throws. The
+	 * failed delivery is republished to the delay queue of its next attempt,
+	 * or to the parking queue after the last attempt, and acknowledged once
+	 * the broker confirms the republish. The republishes go through a second
+	 * channel on the connection of the consumer, in confirm mode. If the
+	 * republish isn't confirmed, or is returned as unroutable because the
+	 * delay queue was deleted, the delivery is requeued instead; the queues
+	 * are declared again for the latter. Declares the delay and parking
+	 * queues of the consumed queue, which must be a durable queue with a
+	 * stable name. Without a retry policy the failed delivery is left
+	 * unacknowledged, or rejected when the handlers run on an executor.
+	 *
+	 * When a message packed in a coalesced envelope fails, the messages
+	 * before it are not retried: the failed message and the ones after it
+	 * are republished as a new envelope, and share its attempt count.
+	 * Without a retry policy the whole envelope is delivered again, so its
+	 * handled messages are handled again too.
+	 *
+	 * @param retryPolicy the retry policy, or <code>null</code> to disable
+	 *            retries
+	 *
+	 * @throws IOException if declaring the queues fails
+	 * @throws RabbitMqClientException if the consumed queue is server-named
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) throws IOException {
+		if (retryPolicy != null) {
+			retryPolicy.declare(_channel, _queueName);
+		}
+		_retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Sets whether a delivery whose handler throws is requeued or discarded
+	 * when the handlers run on an executor and no retry policy is set. A
+	 * discarded delivery is dead-lettered if the queue has a dead letter
+	 * exchange. Defaults to <code>true</code>; a handler that always fails
+	 * then receives the same delivery over and over.
+	 *
+	 * @param requeueOnFailure <code>true</code> to requeue failed deliveries
+	 */
+	public void setRequeueOnFailure(boolean requeueOnFailure) {
+		_requeueOnFailure = requeueOnFailure;
+	}
+
+	/**
+	 * Gets the name of the queue this consumer consumes.
+	 *
+	 * @return The queue name
+	 */
+	public String getQueueName() {
+		return _queueName;
 	}
 
 	/* (non-Javadoc)
@@ -140,4 +581,19 @@ public abstract class RabbitMqConsumer extends DefaultConsumer {
 	 * @param message The delivered message
 	 */
 	public abstract void handleMessage(Message message);
+
+	/**
+	 * Executor running the handlers together with the permits limiting their
+	 * concurrency.
+	 */
+	private static final class HandlerExecution {
+
+		private final ExecutorService _executor;
+		private final Semaphore _permits;
+
+		private HandlerExecution(ExecutorService executor, int maxConcurrency) {
+			_executor = executor;
+			_permits = new Semaphore(maxConcurrency);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package com.peerlez.rabbitmq;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for the executors used to run consumer handlers and blocking
+ * publishes off the client dispatch threads. The library is built for Java 7,
+ * so virtual threads are looked up at runtime and only used when the running
+ * JDK provides them.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class RabbitMqExecutors {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(RabbitMqExecutors.class);
+
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR =
+		findVirtualThreadExecutorFactory();
+
+	/**
+	 * Non-instantiable.
+	 */
+	private RabbitMqExecutors() {
+	}
+
+	/**
+	 * Tells whether the running JDK supports virtual threads.
+	 *
+	 * @return <code>true</code> if virtual threads are available
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new virtual thread. On
+	 * JDKs without virtual threads this falls back to a cached pool of daemon
+	 * platform threads.
+	 *
+	 * @return new executor
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (NEW_VIRTUAL_THREAD_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR
+					.invoke(null);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				LOG.warn("Unable to create virtual thread executor", e);
+			}
+		}
+		LOG.warn("Virtual threads not available, using platform threads");
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger _sequence = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "rabbitmq-handler-"
+					+ _sequence.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Looks up <code>Executors.newVirtualThreadPerTaskExecutor()</code>.
+	 *
+	 * @return the factory method, or <code>null</code> if not available
+	 */
+	private static Method findVirtualThreadExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
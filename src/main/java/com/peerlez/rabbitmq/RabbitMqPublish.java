@@ -1,11 +1,16 @@
 package com.peerlez.rabbitmq;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 
 /**
@@ -20,7 +25,7 @@ public final class RabbitMqPublish {
 		.getLogger(RabbitMqPublish.class);
 
 	private static RabbitMqPublish _instance;
-	private Channel _channel;
+	private volatile String _latencyOriginId;
 	private static ObjectMapper _jsonObjectMapper = new ObjectMapper();
 
 	/**
@@ -51,19 +56,207 @@ public final class RabbitMqPublish {
 	 *            {@link Channel} where to publish messages
 	 *
 	 * @throws IOException if an I/O problem is encountered
-	 * @throws RabbitMqClientException if establishing a new channel fails
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if the broker has blocked the connection
 	 */
 	public void send(Message message, RabbitMqConnectionFactory 
 			rabbitMqConnection) throws IOException, RabbitMqClientException {
 
-		_channel = rabbitMqConnection.newChannel();
-		_channel.exchangeDeclare(message.getExchange(), message.getRoutingKey(),
-				true);
+		publish(message.getExchange(), message.getRoutingKey(),
+			message.getBasicProperties().builder().build(),
+			toBody(message), rabbitMqConnection, false);
 
-		_channel.basicPublish(message.getExchange(), message.getRoutingKey(),
-				message.getBasicProperties().builder().build(),
-			_jsonObjectMapper.writeValueAsBytes(message));
+		LOG.info("RabbitMQ message sent: {}", message);
+	}
+
+	/**
+	 * Converts the message to the body published by
+	 * {@link #send(Message, RabbitMqConnectionFactory)}.
+	 *
+	 * @param message Message to be published
+	 *
+	 * @return The published body
+	 *
+	 * @throws IOException if the message can't be serialized
+	 */
+	static byte[] toBody(Message message) throws IOException {
+		return _jsonObjectMapper.writeValueAsBytes(message);
+	}
+
+	/**
+	 * Publishes the given body as is. Publishes on the channel of the
+	 * connection are serialized, so that the connection can be shared by
+	 * several threads.
+	 *
+	 * @param exchange exchange to publish to
+	 * @param routingKey routing key of the message
+	 * @param properties properties of the message
+	 * @param body body of the message
+	 * @param rabbitMqConnection The {@link RabbitMqConnectionFactory} to
+	 *            provide the {@link Channel} where to publish messages
+	 * @param latencyStamped whether the properties were already stamped with
+	 *            {@link #stampLatency(BasicProperties)}, e.g. those of a
+	 *            coalesced envelope keeping the time its first message was
+	 *            sent
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if the broker has blocked the connection
+	 */
+	void publish(String exchange, String routingKey,
+		BasicProperties properties, byte[] body,
+		RabbitMqConnectionFactory rabbitMqConnection, boolean latencyStamped)
+		throws IOException, RabbitMqClientException {
+		publish(exchange, routingKey, properties, body, rabbitMqConnection,
+			null, latencyStamped);
+	}
+
+	/**
+	 * Publishes the given body as is, on the confirmed channel if given.
+	 *
+	 * @param exchange exchange to publish to
+	 * @param routingKey routing key of the message
+	 * @param properties properties of the message
+	 * @param body body of the message
+	 * @param rabbitMqConnection The {@link RabbitMqConnectionFactory} to
+	 *            provide the {@link Channel} where to publish messages
+	 * @param confirms confirms of the channel to publish on, or
+	 *            <code>null</code> to publish without a confirm
+	 * @param latencyStamped whether the properties were already stamped
+	 *
+	 * @return The confirm of the publish, or <code>null</code> if not
+	 *         confirmed
+	 *
+	 * @throws IOException if an I/O problem is encountered
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if the broker has blocked the connection
+	 */
+	private PublishConfirms.PendingConfirm publish(String exchange,
+		String routingKey, BasicProperties properties, byte[] body,
+		RabbitMqConnectionFactory rabbitMqConnection, PublishConfirms confirms,
+		boolean latencyStamped) throws IOException, RabbitMqClientException {
+
+		rabbitMqConnection.getRateLimiter().acquire();
+
+		BasicProperties publishProperties = latencyStamped ? properties
+			: stampLatency(properties);
+
+		// the channel is only held locally, the shared instance is used by
+		// other threads with other connections at the same time
+		Channel channel = confirms == null ? rabbitMqConnection.newChannel()
+			: confirms.getChannel();
+		channel.exchangeDeclare(exchange, routingKey, true);
+
+		synchronized (channel) {
+			// the sequence number is only valid while holding the lock
+			PublishConfirms.PendingConfirm pending = confirms == null ? null
+				: confirms.expect(channel.getNextPublishSeqNo());
+			try {
+				channel.basicPublish(exchange, routingKey, publishProperties,
+					body);
+			} catch (IOException | RuntimeException e) {
+				if (pending != null) {
+					confirms.forget(pending);
+				}
+				throw e;
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Enables stamping the publish time and origin into the headers of every
+	 * published message, so that consumers can track the end-to-end latency
+	 * with a {@link LatencyTracker}.
+	 *
+	 * @param originId id of this publisher, e.g. the service name, or
+	 *            <code>null</code> to disable stamping
+	 */
+	public void setLatencyStamping(String originId) {
+		_latencyOriginId = originId;
+	}
 
+	/**
+	 * Adds the latency headers to the given properties if stamping is
+	 * enabled.
+	 *
+	 * @param properties properties of the message to publish
+	 *
+	 * @return The stamped properties, or the given ones if stamping is
+	 *         disabled
+	 */
+	BasicProperties stampLatency(BasicProperties properties) {
+		String originId = _latencyOriginId;
+		return originId == null ? properties : LatencyTracker.stamp(
+			properties, originId);
+	}
+
+	/**
+	 * Publishes the message and blocks until the broker confirms it. Puts the
+	 * channel to confirm mode on first use. Concurrent callers sharing the
+	 * connection publish on its single channel one at a time, and each waits
+	 * only for the confirm of its own message. A timeout doesn't close the
+	 * channel.
+	 *
+	 * @param message Message to be published
+	 * @param rabbitMqConnection The {@link RabbitMqConnectionFactory} to
+	 *            provide the {@link Channel} where to publish messages
+	 * @param timeoutMillis maximum time to wait for the confirm
+	 *
+	 * @throws IOException if an I/O problem is encountered or the broker
+	 *             nacks the message
+	 * @throws RabbitMqClientException if establishing a new channel fails; or
+	 *             if the confirm isn't received in time
+	 */
+	public void sendConfirmed(Message message,
+		RabbitMqConnectionFactory rabbitMqConnection, long timeoutMillis)
+		throws IOException, RabbitMqClientException {
+
+		PublishConfirms.PendingConfirm pending = publish(
+			message.getExchange(), message.getRoutingKey(),
+			message.getBasicProperties().builder().build(), toBody(message),
+			rabbitMqConnection, rabbitMqConnection.publishConfirms(), false);
 		LOG.info("RabbitMQ message sent: {}", message);
+
+		try {
+			if (!pending.await(timeoutMillis)) {
+				throw new IOException("Message nacked by broker: " + message);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RabbitMqClientException("Interrupted waiting for "
+				+ "publish confirm", e);
+		} catch (TimeoutException e) {
+			throw new RabbitMqClientException("Publish confirm not received "
+				+ "in " + timeoutMillis + " ms", e);
+		}
+	}
+
+	/**
+	 * Publishes the message and waits for the confirm on the given executor,
+	 * e.g. on a virtual thread from
+	 * {@link RabbitMqExecutors#newVirtualThreadExecutor()}, so that the
+	 * calling thread isn't blocked.
+	 *
+	 * @param message Message to be published
+	 * @param rabbitMqConnection The {@link RabbitMqConnectionFactory} to
+	 *            provide the {@link Channel} where to publish messages
+	 * @param timeoutMillis maximum time to wait for the confirm
+	 * @param executor the executor to publish and wait on
+	 *
+	 * @return future completed once the message is confirmed
+	 */
+	public Future<Void> sendConfirmedAsync(final Message message,
+		final RabbitMqConnectionFactory rabbitMqConnection,
+		final long timeoutMillis, ExecutorService executor) {
+
+		return executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				sendConfirmed(message, rabbitMqConnection, timeoutMillis);
+				return null;
+			}
+		});
 	}
 }
\ No newline at end of file
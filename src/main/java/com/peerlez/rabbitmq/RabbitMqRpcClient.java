@@ -0,0 +1,354 @@
+package com.peerlez.rabbitmq;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Request/reply client using the RabbitMQ direct reply-to pseudo-queue
+ * <code>amq.rabbitmq.reply-to</code>. All calls share one {@link Channel} and
+ * one reply consumer; replies are matched to the outstanding calls by their
+ * correlation id, so any number of calls can be in flight at once.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RabbitMqRpcClient {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(RabbitMqRpcClient.class);
+
+	/**
+	 * The direct reply-to pseudo-queue name.
+	 */
+	public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+	private final Channel _channel;
+	private final long _defaultTimeoutMillis;
+	private final String _correlationIdPrefix;
+	private final AtomicLong _correlationIdSequence = new AtomicLong();
+	private final ConcurrentMap<String, RpcFuture> _pendingCalls =
+		new ConcurrentHashMap<>();
+	private final ScheduledThreadPoolExecutor _timeoutScheduler;
+	private final String _replyConsumerTag;
+	private volatile boolean _closed;
+
+	/**
+	 * Constructs new RPC client on the given {@link Channel} and starts
+	 * consuming the direct reply-to pseudo-queue. The channel should be
+	 * dedicated to this client.
+	 *
+	 * @param channel Channel to publish the requests and receive the replies
+	 * @param defaultTimeoutMillis timeout in milliseconds for calls made
+	 *            without an explicit timeout
+	 *
+	 * @throws IOException if the reply consumer can't be started
+	 */
+	public RabbitMqRpcClient(Channel channel, long defaultTimeoutMillis)
+		throws IOException {
+		_channel = channel;
+		_defaultTimeoutMillis = defaultTimeoutMillis;
+		_correlationIdPrefix = UUID.randomUUID().toString() + "-";
+
+		_timeoutScheduler = new ScheduledThreadPoolExecutor(1,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rabbitmq-rpc-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		_timeoutScheduler.setRemoveOnCancelPolicy(true);
+
+		// direct reply-to requires no-ack mode and the consumer has to be
+		// registered before the first request is published
+		_replyConsumerTag = _channel.basicConsume(DIRECT_REPLY_TO, true,
+			new ReplyConsumer(_channel));
+	}
+
+	/**
+	 * Calls the remote service and waits for the reply using the default
+	 * timeout.
+	 *
+	 * @param request the request message. Its exchange and routing key
+	 *            address the service; its body is published as is.
+	 *
+	 * @return The reply message
+	 *
+	 * @throws RabbitMqClientException if the request can't be published, no
+	 *             reply is received in time or the client is closed
+	 */
+	public Message call(Message request) throws RabbitMqClientException {
+		return call(request, _defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Calls the remote service and waits for the reply.
+	 *
+	 * @param request the request message. Its exchange and routing key
+	 *            address the service; its body is published as is.
+	 * @param timeout the maximum time to wait for the reply
+	 * @param unit the time unit of the timeout argument
+	 *
+	 * @return The reply message
+	 *
+	 * @throws RabbitMqClientException if the request can't be published, no
+	 *             reply is received in time or the client is closed
+	 */
+	public Message call(Message request, long timeout, TimeUnit unit)
+		throws RabbitMqClientException {
+
+		Future<Message> reply = callAsync(request, timeout, unit);
+		try {
+			return reply.get();
+		} catch (InterruptedException e) {
+			reply.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new RabbitMqClientException("Interrupted waiting for reply",
+				e);
+		} catch (ExecutionException e) {
+			throw new RabbitMqClientException("RPC call failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Publishes the request and returns immediately. The returned future is
+	 * completed when the reply arrives, or fails with a
+	 * {@link TimeoutException} if no reply arrives in time.
+	 *
+	 * @param request the request message. Its exchange and routing key
+	 *            address the service; its body is published as is.
+	 * @param timeout the maximum time to wait for the reply
+	 * @param unit the time unit of the timeout argument
+	 *
+	 * @return future of the reply message
+	 *
+	 * @throws RabbitMqClientException if the request can't be published or
+	 *             the client is closed
+	 */
+	public Future<Message> callAsync(Message request, long timeout,
+		TimeUnit unit) throws RabbitMqClientException {
+
+		if (_closed) {
+			throw new RabbitMqClientException("RPC client is closed");
+		}
+
+		final String correlationId = _correlationIdPrefix
+			+ _correlationIdSequence.incrementAndGet();
+		RpcFuture future = new RpcFuture(correlationId);
+		_pendingCalls.put(correlationId, future);
+
+		future._timeout = _timeoutScheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				RpcFuture expired = _pendingCalls.remove(correlationId);
+				if (expired != null) {
+					expired.fail(new TimeoutException("No reply received for: "
+						+ correlationId));
+				}
+			}
+		}, timeout, unit);
+
+		BasicProperties properties = request.getBasicProperties();
+		BasicProperties.Builder builder = properties == null
+			? new BasicProperties.Builder() : properties.builder();
+		BasicProperties requestProperties = builder
+			.correlationId(correlationId).replyTo(DIRECT_REPLY_TO).build();
+
+		try {
+			// channels must not be shared for concurrent publishing
+			synchronized (_channel) {
+				_channel.basicPublish(request.getExchange(),
+					request.getRoutingKey(), requestProperties,
+					request.getBodyContent());
+			}
+		} catch (IOException e) {
+			_pendingCalls.remove(correlationId);
+			future._timeout.cancel(false);
+			throw new RabbitMqClientException("Unable to publish RPC request",
+				e);
+		}
+		return future;
+	}
+
+	/**
+	 * Gets the number of calls waiting for a reply.
+	 *
+	 * @return The number of outstanding calls
+	 */
+	public int getPendingCallCount() {
+		return _pendingCalls.size();
+	}
+
+	/**
+	 * Stops the reply consumer and fails all outstanding calls. The channel
+	 * itself is left open.
+	 */
+	public void close() {
+		_closed = true;
+		try {
+			if (_channel.isOpen()) {
+				_channel.basicCancel(_replyConsumerTag);
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to cancel RPC reply consumer", e);
+		}
+		failPendingCalls(new RabbitMqClientException("RPC client is closed"));
+		_timeoutScheduler.shutdownNow();
+	}
+
+	/**
+	 * Fails and removes every outstanding call.
+	 *
+	 * @param cause the failure to report to the callers
+	 */
+	private void failPendingCalls(Throwable cause) {
+		Iterator<RpcFuture> pending = _pendingCalls.values().iterator();
+		while (pending.hasNext()) {
+			RpcFuture future = pending.next();
+			pending.remove();
+			future.fail(cause);
+		}
+	}
+
+	/**
+	 * Consumer of the direct reply-to pseudo-queue. Completes the outstanding
+	 * call matching the correlation id of each reply.
+	 */
+	private final class ReplyConsumer extends DefaultConsumer {
+
+		private ReplyConsumer(Channel channel) {
+			super(channel);
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope,
+			BasicProperties properties, byte[] body) throws IOException {
+
+			String correlationId = properties.getCorrelationId();
+			RpcFuture future = correlationId == null ? null : _pendingCalls
+				.remove(correlationId);
+
+			if (future == null) {
+				LOG.debug("Discarding late or unknown RPC reply: {}",
+					correlationId);
+				return;
+			}
+			future.complete(new Message(properties, body,
+				envelope.getExchange(), envelope.getRoutingKey(),
+				envelope.getDeliveryTag()));
+		}
+
+		@Override
+		public void handleShutdownSignal(String consumerTag,
+			ShutdownSignalException sig) {
+			LOG.debug("RPC reply consumer: {} Received shutdown signal: {}",
+				consumerTag, sig.getMessage());
+			failPendingCalls(sig);
+		}
+	}
+
+	/**
+	 * Future of a single RPC call.
+	 */
+	private final class RpcFuture implements Future<Message> {
+
+		private final String _correlationId;
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private volatile ScheduledFuture<?> _timeout;
+		private volatile Message _reply;
+		private volatile Throwable _failure;
+		private volatile boolean _cancelled;
+
+		private RpcFuture(String correlationId) {
+			_correlationId = correlationId;
+		}
+
+		private void complete(Message reply) {
+			_reply = reply;
+			finish();
+		}
+
+		private void fail(Throwable failure) {
+			_failure = failure;
+			finish();
+		}
+
+		private void finish() {
+			ScheduledFuture<?> timeout = _timeout;
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			_done.countDown();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (_pendingCalls.remove(_correlationId, this)) {
+				_cancelled = true;
+				finish();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return _cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return _done.getCount() == 0;
+		}
+
+		@Override
+		public Message get() throws InterruptedException, ExecutionException {
+			_done.await();
+			return result();
+		}
+
+		@Override
+		public Message get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+			if (!_done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private Message result() throws ExecutionException {
+			if (_cancelled) {
+				throw new CancellationException();
+			}
+			if (_failure != null) {
+				throw new ExecutionException(_failure);
+			}
+			return _reply;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.peerlez.rabbitmq;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Base class for request/reply services. Consumes the request queue and
+ * publishes the result of {@link #handleCall(Message)} straight to the
+ * <code>replyTo</code> address of each request, using the request correlation
+ * id. Works with {@link RabbitMqRpcClient} and any client using direct
+ * reply-to.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public abstract class RabbitMqRpcServer extends RabbitMqConsumer {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(RabbitMqRpcServer.class);
+
+	/**
+	 * Constructs new RPC server consuming the given request queue. The queue
+	 * must already be declared.
+	 *
+	 * @param channel Channel to use by the server
+	 * @param queueName name of the request queue
+	 *
+	 * @throws IOException if an error is encountered
+	 */
+	public RabbitMqRpcServer(Channel channel, String queueName)
+		throws IOException {
+		super(channel, queueName);
+	}
+
+	/**
+	 * Constructs new RPC server consuming the given request queue and
+	 * handling the requests on the given executor, see
+	 * {@link RabbitMqConsumer#RabbitMqConsumer(Channel, String, ExecutorService, int)}.
+	 * The queue must already be declared.
+	 *
+	 * @param channel Channel to use by the server
+	 * @param queueName name of the request queue
+	 * @param executor the executor to handle the requests on
+	 * @param maxConcurrency maximum number of concurrently handled requests,
+	 *            at least one
+	 *
+	 * @throws IOException if an error is encountered
+	 * @throws IllegalArgumentException if <code>maxConcurrency</code> is less
+	 *             than one
+	 */
+	public RabbitMqRpcServer(Channel channel, String queueName,
+		ExecutorService executor, int maxConcurrency) throws IOException {
+		super(channel, queueName, executor, maxConcurrency);
+	}
+
+	/**
+	 * Handles the request and publishes the reply to the caller.
+	 *
+	 * @param request The delivered request
+	 */
+	@Override
+	public final void handleMessage(Message request) {
+
+		BasicProperties properties = request.getBasicProperties();
+		if (properties == null || properties.getReplyTo() == null) {
+			LOG.warn("Discarding RPC request without reply address: {}",
+				request.getDeliveryTag());
+			return;
+		}
+
+		byte[] reply = handleCall(request);
+		if (reply == null) {
+			return;
+		}
+
+		BasicProperties replyProperties = new BasicProperties.Builder()
+			.correlationId(properties.getCorrelationId()).build();
+
+		// the handler may run on an executor, so the reply publish is
+		// serialized with the other publishes on the consumer channel
+		Channel channel = getChannel();
+		try {
+			synchronized (channel) {
+				// replies go through the default exchange directly to the caller
+				channel.basicPublish("", properties.getReplyTo(),
+					replyProperties, reply);
+			}
+		} catch (IOException e) {
+			throw new RabbitMqClientException("Unable to publish RPC reply", e);
+		}
+	}
+
+	/**
+	 * Handles a request delivered by the broker to the server.
+	 *
+	 * This method is expected to be overritten.
+	 *
+	 * @param request The delivered request
+	 *
+	 * @return the body of the reply, or <code>null</code> to send no reply
+	 */
+	public abstract byte[] handleCall(Message request);
+}
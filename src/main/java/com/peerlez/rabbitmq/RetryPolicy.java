@@ -0,0 +1,237 @@
+package com.peerlez.rabbitmq;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Delayed retry of failed deliveries through TTL queues. Every attempt has a
+ * delay queue whose messages expire after the attempt delay and are then
+ * dead-lettered back to the consumed queue. The delays grow exponentially.
+ * After the last attempt the message is moved to a parking queue for manual
+ * inspection.
+ *
+ * The failed delivery is republished and acknowledged as soon as the broker
+ * confirms the republish, so the consumer never blocks while the message
+ * waits for its retry. The attempt
+ * count and the original exchange and routing key travel in the message
+ * headers.
+ *
+ * The delay and parking queues are durable and named after the consumed
+ * queue, so the consumed queue must be a durable, non-exclusive queue with
+ * a stable name. Server-named queues are refused: the broker reserves the
+ * <code>amq.</code> prefix, and queues named after a temporary queue would
+ * outlive it.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RetryPolicy {
+
+	/**
+	 * Header holding the number of retries made so far.
+	 */
+	public static final String ATTEMPT_HEADER = "x-retry-attempt";
+
+	/**
+	 * Header holding the exchange the message was originally published to.
+	 */
+	public static final String ORIGINAL_EXCHANGE_HEADER = "x-original-exchange";
+
+	/**
+	 * Header holding the routing key the message was originally published
+	 * with.
+	 */
+	public static final String ORIGINAL_ROUTING_KEY_HEADER =
+		"x-original-routing-key";
+
+	/**
+	 * Header holding the error of the last failed attempt.
+	 */
+	public static final String ERROR_HEADER = "x-retry-error";
+
+	private final long[] _delaysMillis;
+
+	/**
+	 * Constructs new policy.
+	 *
+	 * @param initialDelayMillis delay before the first retry
+	 * @param multiplier factor the delay grows by on every retry
+	 * @param maxAttempts number of retries before the message is parked
+	 */
+	public RetryPolicy(long initialDelayMillis, double multiplier,
+		int maxAttempts) {
+		_delaysMillis = new long[maxAttempts];
+		double delay = initialDelayMillis;
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			_delaysMillis[attempt] = (long) delay;
+			delay *= multiplier;
+		}
+	}
+
+	/**
+	 * Declares the delay queues and the parking queue of the given queue.
+	 *
+	 * @param channel Channel to declare the queues on
+	 * @param queueName the consumed queue
+	 *
+	 * @throws IOException if declaring a queue fails
+	 * @throws RabbitMqClientException if the queue is server-named
+	 */
+	public void declare(Channel channel, String queueName) throws IOException {
+		if (queueName == null || queueName.startsWith("amq.")) {
+			throw new RabbitMqClientException("Retry policy needs a durable "
+				+ "queue with a stable name, not server-named: " + queueName);
+		}
+		for (int attempt = 0; attempt < _delaysMillis.length; attempt++) {
+			Map<String, Object> arguments = new HashMap<>();
+			arguments.put("x-message-ttl", _delaysMillis[attempt]);
+			arguments.put("x-dead-letter-exchange", "");
+			arguments.put("x-dead-letter-routing-key", queueName);
+			channel.queueDeclare(getRetryQueueName(queueName, attempt), true,
+				false, false, arguments);
+		}
+		channel.queueDeclare(getParkingQueueName(queueName), true, false,
+			false, null);
+	}
+
+	/**
+	 * Republishes the failed delivery to the delay queue of its next attempt,
+	 * or to the parking queue if all attempts are used. Publishes with the
+	 * mandatory flag, so that the broker returns the message instead of
+	 * dropping it if the queue is missing. The caller acks the delivery once
+	 * the publish is confirmed and wasn't returned.
+	 *
+	 * @param channel Channel to publish on
+	 * @param queueName the consumed queue
+	 * @param envelope packaging data of the failed delivery
+	 * @param properties content header data of the failed delivery
+	 * @param body body of the failed delivery
+	 * @param error the failure
+	 *
+	 * @return <code>true</code> if the message was scheduled for a retry,
+	 *         <code>false</code> if it was parked
+	 *
+	 * @throws IOException if publishing fails
+	 */
+	public boolean retry(Channel channel, String queueName, Envelope envelope,
+		BasicProperties properties, byte[] body, Throwable error)
+		throws IOException {
+
+		int attempt = getAttempt(properties);
+		Map<String, Object> headers = new HashMap<>();
+		if (properties != null && properties.getHeaders() != null) {
+			headers.putAll(properties.getHeaders());
+		}
+		if (!headers.containsKey(ORIGINAL_EXCHANGE_HEADER)) {
+			headers.put(ORIGINAL_EXCHANGE_HEADER, envelope.getExchange());
+			headers.put(ORIGINAL_ROUTING_KEY_HEADER, envelope.getRoutingKey());
+		}
+		headers.put(ATTEMPT_HEADER, attempt + 1);
+		headers.put(ERROR_HEADER, String.valueOf(error));
+
+		BasicProperties retryProperties = (properties == null
+			? new BasicProperties.Builder() : properties.builder()).headers(
+			headers).build();
+
+		boolean retried = attempt < _delaysMillis.length;
+		String target = retried ? getRetryQueueName(queueName, attempt)
+			: getParkingQueueName(queueName);
+		channel.basicPublish("", target, true, retryProperties, body);
+		return retried;
+	}
+
+	/**
+	 * Gets the number of retries.
+	 *
+	 * @return The maximum attempts
+	 */
+	public int getMaxAttempts() {
+		return _delaysMillis.length;
+	}
+
+	/**
+	 * Gets the delay before the given retry.
+	 *
+	 * @param attempt the retry, starting from 0
+	 *
+	 * @return The delay in milliseconds
+	 */
+	public long getDelayMillis(int attempt) {
+		return _delaysMillis[attempt];
+	}
+
+	/**
+	 * Gets the name of the delay queue of the given retry.
+	 *
+	 * @param queueName the consumed queue
+	 * @param attempt the retry, starting from 0
+	 *
+	 * @return The delay queue name
+	 */
+	public String getRetryQueueName(String queueName, int attempt) {
+		return queueName + ".retry." + _delaysMillis[attempt];
+	}
+
+	/**
+	 * Gets the name of the parking queue.
+	 *
+	 * @param queueName the consumed queue
+	 *
+	 * @return The parking queue name
+	 */
+	public String getParkingQueueName(String queueName) {
+		return queueName + ".parking";
+	}
+
+	/**
+	 * Gets the number of retries made so far for a delivery.
+	 *
+	 * @param properties content header data of the delivery
+	 *
+	 * @return The attempt count, 0 for a first delivery
+	 */
+	public static int getAttempt(BasicProperties properties) {
+		Object attempt = header(properties, ATTEMPT_HEADER);
+		return attempt instanceof Number ? ((Number) attempt).intValue() : 0;
+	}
+
+	/**
+	 * Gets the exchange the delivery was originally published to.
+	 *
+	 * @param properties content header data of the delivery
+	 * @param exchange exchange of the delivery
+	 *
+	 * @return The original exchange
+	 */
+	static String getOriginalExchange(BasicProperties properties,
+		String exchange) {
+		Object original = header(properties, ORIGINAL_EXCHANGE_HEADER);
+		return original == null ? exchange : original.toString();
+	}
+
+	/**
+	 * Gets the routing key the delivery was originally published with.
+	 *
+	 * @param properties content header data of the delivery
+	 * @param routingKey routing key of the delivery
+	 *
+	 * @return The original routing key
+	 */
+	static String getOriginalRoutingKey(BasicProperties properties,
+		String routingKey) {
+		Object original = header(properties, ORIGINAL_ROUTING_KEY_HEADER);
+		return original == null ? routingKey : original.toString();
+	}
+
+	private static Object header(BasicProperties properties, String name) {
+		if (properties == null || properties.getHeaders() == null) {
+			return null;
+		}
+		return properties.getHeaders().get(name);
+	}
+}
@@ -0,0 +1,133 @@
+package com.peerlez.rabbitmq.perf;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.peerlez.rabbitmq.Message;
+import com.peerlez.rabbitmq.RabbitMqConsumer;
+import com.peerlez.rabbitmq.RabbitMqExecutors;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Compares running blocking {@link RabbitMqConsumer} handlers on virtual
+ * threads against a fixed thread pool. The messages are queued on an
+ * {@link InProcessBroker} up front and delivered from its single dispatch
+ * thread per consumer, honouring the prefetch count the consumer sets.
+ *
+ * Arguments: [messages] [handlerBlockMillis] [prefetch] [poolThreads]
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class ExecutionModeBenchmark {
+
+	private static final String QUEUE = "benchmark";
+
+	private ExecutionModeBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long blockMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		int prefetch = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+		System.out.printf("messages=%d handlerBlockMillis=%d prefetch=%d "
+			+ "poolThreads=%d virtualThreads=%s%n", messages, blockMillis,
+			prefetch, poolThreads, RabbitMqExecutors.isVirtualThreadSupported());
+
+		// warm up both paths before measuring
+		run("fixed-pool", Executors.newFixedThreadPool(poolThreads),
+			messages / 10, blockMillis, prefetch);
+		run(virtualThreadMode(), RabbitMqExecutors.newVirtualThreadExecutor(),
+			messages / 10, blockMillis, prefetch);
+
+		report(run("fixed-pool", Executors.newFixedThreadPool(poolThreads),
+			messages, blockMillis, prefetch));
+		report(run(virtualThreadMode(), RabbitMqExecutors
+			.newVirtualThreadExecutor(), messages, blockMillis, prefetch));
+	}
+
+	/**
+	 * Gets the label of the executor
+	 * {@link RabbitMqExecutors#newVirtualThreadExecutor()} returns on this
+	 * JVM, which falls back to a cached platform thread pool before Java 21.
+	 *
+	 * @return The label of the handler threads actually used
+	 */
+	static String virtualThreadMode() {
+		return RabbitMqExecutors.isVirtualThreadSupported() ? "virtual"
+			: "cached-platform (no virtual threads)";
+	}
+
+	private static Result run(String mode, ExecutorService executor,
+		int messages, final long blockMillis, int prefetch) throws Exception {
+
+		final CountDownLatch handled = new CountDownLatch(messages);
+		Channel channel = new InProcessBroker().newConnection()
+			.createChannel();
+		channel.queueDeclare(QUEUE, false, false, false, null);
+
+		BasicProperties properties = new BasicProperties.Builder().build();
+		byte[] body = new byte[128];
+		for (int i = 0; i < messages; i++) {
+			channel.basicPublish("", QUEUE, properties, body);
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		long start = System.nanoTime();
+		RabbitMqConsumer consumer = new RabbitMqConsumer(channel, QUEUE,
+			executor, prefetch) {
+
+			@Override
+			public void handleMessage(Message message) {
+				try {
+					// stands for a blocking I/O call of the handler
+					Thread.sleep(blockMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				handled.countDown();
+			}
+		};
+		handled.await();
+		long elapsedNanos = System.nanoTime() - start;
+		channel.basicCancel(consumer.getConsumerTag());
+		channel.close();
+
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		return new Result(mode, messages, elapsedNanos,
+			threads.getPeakThreadCount());
+	}
+
+	private static void report(Result result) {
+		double seconds = result._elapsedNanos / 1e9;
+		System.out.printf("%-36s %8.0f msg/s %8.2f s peak threads %d%n",
+			result._mode, result._messages / seconds, seconds,
+			result._peakThreads);
+	}
+
+	private static final class Result {
+
+		private final String _mode;
+		private final int _messages;
+		private final long _elapsedNanos;
+		private final int _peakThreads;
+
+		private Result(String mode, int messages, long elapsedNanos,
+			int peakThreads) {
+			_mode = mode;
+			_messages = messages;
+			_elapsedNanos = elapsedNanos;
+			_peakThreads = peakThreads;
+		}
+	}
+}
@@ -0,0 +1,747 @@
+package com.peerlez.rabbitmq.perf;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ReturnListener;
+
+/**
+ * In-process stand-in for a RabbitMQ broker, so that the library code paths
+ * can be driven without a network or a broker. Supports the subset of AMQP
+ * the library uses: exchange, queue and binding declaration, routing by
+ * direct, topic and fanout exchanges, consumers with prefetch and acks,
+ * where the prefetch count applies per consumer to the consumers started
+ * after it's set, or to the whole channel when set global,
+ * publisher confirms, returns of unroutable mandatory publishes, queue
+ * deletion, direct reply-to and dead-lettering of messages expired by a
+ * queue TTL. Nothing is persisted and the delivery is always in memory.
+ *
+ * Pass it to {@link com.peerlez.rabbitmq.RabbitMqConnectionFactory} or
+ * {@link com.peerlez.rabbitmq.RabbitMq} in place of a broker URI.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class InProcessBroker extends ConnectionFactory {
+
+	private static final Logger LOG = LoggerFactory
+		.getLogger(InProcessBroker.class);
+
+	private static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+	private final ConcurrentMap<String, BrokerExchange> _exchanges =
+		new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, BrokerQueue> _queues =
+		new ConcurrentHashMap<>();
+	private final AtomicLong _nameSequence = new AtomicLong();
+	private final List<BrokerConnection> _connections =
+		new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService _expiryScheduler =
+		new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "in-process-broker-ttl");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * Constructs new empty broker.
+	 */
+	public InProcessBroker() {
+		setHost("in-process");
+	}
+
+	@Override
+	public Connection newConnection() throws IOException {
+		BrokerConnection connection = new BrokerConnection();
+		_connections.add(connection);
+		return (Connection) proxy(Connection.class, connection);
+	}
+
+	@Override
+	public Connection newConnection(ExecutorService executor)
+		throws IOException {
+		return newConnection();
+	}
+
+	/**
+	 * Simulates a resource alarm: notifies every connection that it's
+	 * blocked. Publishing itself isn't held back.
+	 *
+	 * @param reason the reason given to the blocked listeners
+	 *
+	 * @throws IOException if a listener fails
+	 */
+	public void block(String reason) throws IOException {
+		for (BrokerConnection connection : _connections) {
+			for (BlockedListener listener : connection._blockedListeners) {
+				listener.handleBlocked(reason);
+			}
+		}
+	}
+
+	/**
+	 * Clears a simulated resource alarm: notifies every connection that it's
+	 * unblocked.
+	 *
+	 * @throws IOException if a listener fails
+	 */
+	public void unblock() throws IOException {
+		for (BrokerConnection connection : _connections) {
+			for (BlockedListener listener : connection._blockedListeners) {
+				listener.handleUnblocked();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of messages waiting in the given queue.
+	 *
+	 * @param queueName the queue name
+	 *
+	 * @return The number of ready messages, or 0 if there's no such queue
+	 */
+	public int getMessageCount(String queueName) {
+		BrokerQueue queue = _queues.get(queueName);
+		return queue == null ? 0 : queue._messages.size();
+	}
+
+	/**
+	 * Routes a published message to the matching queues.
+	 *
+	 * @return <code>true</code> if the message reached a queue
+	 */
+	private boolean route(String exchangeName, String routingKey,
+		BasicProperties properties, byte[] body) {
+
+		if (exchangeName.isEmpty()) {
+			BrokerQueue queue = _queues.get(routingKey);
+			if (queue == null) {
+				return false;
+			}
+			queue.enqueue(new Delivery(exchangeName, routingKey, properties,
+				body));
+			return true;
+		}
+
+		BrokerExchange exchange = _exchanges.get(exchangeName);
+		if (exchange == null) {
+			LOG.warn("Dropping message to unknown exchange: {}", exchangeName);
+			return false;
+		}
+		boolean routed = false;
+		for (Binding binding : exchange._bindings) {
+			if (exchange.matches(binding._routingKey, routingKey)) {
+				binding._queue.enqueue(new Delivery(exchangeName, routingKey,
+					properties, body));
+				routed = true;
+			}
+		}
+		return routed;
+	}
+
+	private BrokerQueue declareQueue(String name,
+		Map<String, Object> arguments) {
+		BrokerQueue queue = new BrokerQueue(name, arguments);
+		BrokerQueue existing = _queues.putIfAbsent(name, queue);
+		return existing == null ? queue : existing;
+	}
+
+	private String generateName(String prefix) {
+		return prefix + _nameSequence.incrementAndGet();
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(InProcessBroker.class.getClassLoader(),
+			new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * Default result of the unsupported calls, so that primitive results
+	 * don't fail on <code>null</code>.
+	 */
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * Tells whether a topic binding key matches the routing key.
+	 */
+	private static boolean topicMatches(String[] pattern, int p,
+		String[] words, int w) {
+
+		if (p == pattern.length) {
+			return w == words.length;
+		}
+		if ("#".equals(pattern[p])) {
+			for (int skip = w; skip <= words.length; skip++) {
+				if (topicMatches(pattern, p + 1, words, skip)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (w == words.length) {
+			return false;
+		}
+		return ("*".equals(pattern[p]) || pattern[p].equals(words[w]))
+			&& topicMatches(pattern, p + 1, words, w + 1);
+	}
+
+	private static final class Delivery {
+
+		private final String _exchange;
+		private final String _routingKey;
+		private final BasicProperties _properties;
+		private final byte[] _body;
+
+		private Delivery(String exchange, String routingKey,
+			BasicProperties properties, byte[] body) {
+			_exchange = exchange;
+			_routingKey = routingKey;
+			_properties = properties;
+			_body = body;
+		}
+	}
+
+	private static final class Unacked {
+
+		private final Delivery _delivery;
+		private final Subscription _subscription;
+
+		private Unacked(Delivery delivery, Subscription subscription) {
+			_delivery = delivery;
+			_subscription = subscription;
+		}
+	}
+
+	private static final class Binding {
+
+		private final BrokerQueue _queue;
+		private final String _routingKey;
+
+		private Binding(BrokerQueue queue, String routingKey) {
+			_queue = queue;
+			_routingKey = routingKey;
+		}
+	}
+
+	private static final class BrokerExchange {
+
+		private final String _type;
+		private final List<Binding> _bindings = new CopyOnWriteArrayList<>();
+
+		private BrokerExchange(String type) {
+			_type = type;
+		}
+
+		private boolean matches(String bindingKey, String routingKey) {
+			switch (_type) {
+			case "fanout":
+			case "headers":
+				return true;
+			case "topic":
+				return topicMatches(bindingKey.split("\\."), 0,
+					routingKey.split("\\."), 0);
+			default:
+				return bindingKey.equals(routingKey);
+			}
+		}
+	}
+
+	private final class BrokerQueue {
+
+		private final String _name;
+		private final long _ttlMillis;
+		private final String _deadLetterExchange;
+		private final String _deadLetterRoutingKey;
+		private final BlockingQueue<Delivery> _messages =
+			new LinkedBlockingQueue<>();
+		private final AtomicLong _consumerCount = new AtomicLong();
+
+		private BrokerQueue(String name, Map<String, Object> arguments) {
+			_name = name;
+			Object ttl = arguments == null ? null : arguments
+				.get("x-message-ttl");
+			_ttlMillis = ttl instanceof Number ? ((Number) ttl).longValue() : 0;
+			_deadLetterExchange = arguments == null ? null : (String) arguments
+				.get("x-dead-letter-exchange");
+			_deadLetterRoutingKey = arguments == null ? null
+				: (String) arguments.get("x-dead-letter-routing-key");
+		}
+
+		private void enqueue(final Delivery delivery) {
+			_messages.add(delivery);
+			if (_ttlMillis > 0) {
+				_expiryScheduler.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						expire(delivery);
+					}
+				}, _ttlMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Drops the delivery if it's still in the queue, dead-lettering it if
+		 * the queue has a dead letter exchange.
+		 */
+		private void expire(Delivery delivery) {
+			if (!_messages.remove(delivery) || _deadLetterExchange == null) {
+				return;
+			}
+			route(_deadLetterExchange, _deadLetterRoutingKey == null
+				? delivery._routingKey : _deadLetterRoutingKey,
+				delivery._properties, delivery._body);
+		}
+
+		private AMQP.Queue.DeclareOk declareOk() {
+			return new AMQP.Queue.DeclareOk.Builder().queue(_name)
+				.messageCount(_messages.size())
+				.consumerCount((int) _consumerCount.get()).build();
+		}
+	}
+
+	/**
+	 * A connection; only tracks its channels and blocked listeners.
+	 */
+	private final class BrokerConnection implements InvocationHandler {
+
+		private final List<BrokerChannel> _channels =
+			new CopyOnWriteArrayList<>();
+		private final List<BlockedListener> _blockedListeners =
+			new CopyOnWriteArrayList<>();
+		private final AtomicLong _channelNumbers = new AtomicLong();
+		private volatile boolean _open = true;
+		private Connection _self;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Exception {
+
+			_self = (Connection) proxy;
+			switch (method.getName()) {
+			case "createChannel":
+				BrokerChannel channel = new BrokerChannel(this,
+					(int) _channelNumbers.incrementAndGet());
+				_channels.add(channel);
+				return proxy(Channel.class, channel);
+			case "isOpen":
+				return _open;
+			case "close":
+			case "abort":
+				_open = false;
+				_connections.remove(this);
+				for (BrokerChannel open : _channels) {
+					open.close();
+				}
+				return null;
+			case "addBlockedListener":
+				_blockedListeners.add((BlockedListener) args[0]);
+				return null;
+			case "removeBlockedListener":
+				return _blockedListeners.remove(args[0]);
+			case "getAddress":
+				return InetAddress.getLoopbackAddress();
+			case "getPort":
+				return getPort();
+			case "toString":
+				return "InProcessBroker connection";
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+	}
+
+	/**
+	 * A channel; holds the consumers, unacknowledged deliveries and the
+	 * confirm state.
+	 */
+	private final class BrokerChannel implements InvocationHandler {
+
+		private final BrokerConnection _connection;
+		private final int _number;
+		private final Map<String, Subscription> _subscriptions =
+			new ConcurrentHashMap<>();
+		private final ConcurrentNavigableMap<Long, Unacked> _unacked =
+			new ConcurrentSkipListMap<>();
+		private final List<ConfirmListener> _confirmListeners =
+			new CopyOnWriteArrayList<>();
+		private final List<ReturnListener> _returnListeners =
+			new CopyOnWriteArrayList<>();
+		private final AtomicLong _deliveryTags = new AtomicLong();
+		private final Object _prefetchLock = new Object();
+		private volatile int _prefetch;
+		private volatile int _globalPrefetch;
+		private volatile boolean _open = true;
+		private volatile boolean _confirm;
+		private long _publishSeqNo;
+		private String _replyQueue;
+
+		private BrokerChannel(BrokerConnection connection, int number) {
+			_connection = connection;
+			_number = number;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Exception {
+
+			switch (method.getName()) {
+			case "exchangeDeclare":
+				_exchanges.putIfAbsent((String) args[0], new BrokerExchange(
+					String.valueOf(args[1])));
+				return new AMQP.Exchange.DeclareOk.Builder().build();
+			case "queueDeclare":
+				String queueName = args == null ? generateName("amq.gen-")
+					: (String) args[0];
+				if (args != null && queueName.startsWith("amq.")) {
+					throw new IOException("ACCESS_REFUSED - queue name '"
+						+ queueName + "' contains reserved prefix 'amq.*'");
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> arguments = args == null ? null
+					: (Map<String, Object>) args[4];
+				return declareQueue(queueName, arguments).declareOk();
+			case "queueDeclarePassive":
+				BrokerQueue queue = _queues.get(args[0]);
+				if (queue == null) {
+					throw new IOException("NOT_FOUND - no queue " + args[0]);
+				}
+				return queue.declareOk();
+			case "queueDelete":
+				BrokerQueue deleted = _queues.remove(args[0]);
+				return new AMQP.Queue.DeleteOk.Builder().messageCount(
+					deleted == null ? 0 : deleted._messages.size()).build();
+			case "queueBind":
+				bind((String) args[0], (String) args[1], (String) args[2]);
+				return new AMQP.Queue.BindOk.Builder().build();
+			case "basicQos":
+				int prefetch = (Integer) args[args.length == 3 ? 1 : 0];
+				if (args.length > 1 && (Boolean) args[args.length - 1]) {
+					_globalPrefetch = prefetch;
+				} else {
+					// as on RabbitMQ, only applies to the consumers started
+					// after this
+					_prefetch = prefetch;
+				}
+				synchronized (_prefetchLock) {
+					_prefetchLock.notifyAll();
+				}
+				return null;
+			case "basicPublish":
+				publish((String) args[0], (String) args[1], args.length > 4
+					&& (Boolean) args[2],
+					(BasicProperties) args[args.length - 2],
+					(byte[]) args[args.length - 1]);
+				return null;
+			case "basicConsume":
+				return consume((String) args[0], args.length > 2
+					&& args[1] instanceof Boolean && (Boolean) args[1],
+					(Consumer) args[args.length - 1]);
+			case "basicCancel":
+				Subscription subscription = _subscriptions.remove(args[0]);
+				if (subscription != null) {
+					subscription.cancel();
+					subscription._consumer.handleCancelOk(subscription._tag);
+				}
+				return null;
+			case "basicAck":
+				settle((Long) args[0], (Boolean) args[1], false);
+				return null;
+			case "basicNack":
+				settle((Long) args[0], (Boolean) args[1], (Boolean) args[2]);
+				return null;
+			case "basicReject":
+				settle((Long) args[0], false, (Boolean) args[1]);
+				return null;
+			case "confirmSelect":
+				_confirm = true;
+				return new AMQP.Confirm.SelectOk.Builder().build();
+			case "getNextPublishSeqNo":
+				synchronized (this) {
+					return _confirm ? _publishSeqNo + 1 : 0L;
+				}
+			case "waitForConfirms":
+				// publishes are routed synchronously, so always confirmed
+				return Boolean.TRUE;
+			case "waitForConfirmsOrDie":
+				return null;
+			case "addConfirmListener":
+				_confirmListeners.add((ConfirmListener) args[0]);
+				return null;
+			case "removeConfirmListener":
+				return _confirmListeners.remove(args[0]);
+			case "addReturnListener":
+				_returnListeners.add((ReturnListener) args[0]);
+				return null;
+			case "removeReturnListener":
+				return _returnListeners.remove(args[0]);
+			case "isOpen":
+				return _open && _connection._open;
+			case "close":
+			case "abort":
+				close();
+				return null;
+			case "getChannelNumber":
+				return _number;
+			case "getConnection":
+				return _connection._self;
+			case "toString":
+				return "InProcessBroker channel " + _number;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				return defaultValue(method.getReturnType());
+			}
+		}
+
+		private void bind(String queueName, String exchangeName,
+			String routingKey) throws IOException {
+
+			BrokerQueue queue = _queues.get(queueName);
+			BrokerExchange exchange = _exchanges.get(exchangeName);
+			if (queue == null || exchange == null) {
+				throw new IOException("NOT_FOUND - no queue or exchange to "
+					+ "bind: " + queueName + ", " + exchangeName);
+			}
+			exchange._bindings.add(new Binding(queue, routingKey));
+		}
+
+		private void publish(String exchange, String routingKey,
+			boolean mandatory, BasicProperties properties, byte[] body)
+			throws IOException {
+
+			BasicProperties published = properties == null
+				? new BasicProperties() : properties;
+			if (DIRECT_REPLY_TO.equals(published.getReplyTo())) {
+				if (_replyQueue == null) {
+					throw new IOException("PRECONDITION_FAILED - fast reply "
+						+ "consumer does not exist");
+				}
+				published = published.builder().replyTo(_replyQueue).build();
+			}
+
+			if (!route(exchange, routingKey, published, body) && mandatory) {
+				// as on RabbitMQ, the return precedes the confirm
+				for (ReturnListener listener : _returnListeners) {
+					listener.handleReturn(312, "NO_ROUTE", exchange,
+						routingKey, published, body);
+				}
+			}
+
+			if (_confirm) {
+				long seqNo;
+				synchronized (this) {
+					seqNo = ++_publishSeqNo;
+				}
+				for (ConfirmListener listener : _confirmListeners) {
+					listener.handleAck(seqNo, false);
+				}
+			}
+		}
+
+		private String consume(String queueName, boolean autoAck,
+			Consumer consumer) throws IOException {
+
+			if (DIRECT_REPLY_TO.equals(queueName)) {
+				_replyQueue = generateName(DIRECT_REPLY_TO + ".");
+				queueName = _replyQueue;
+				declareQueue(queueName, null);
+			}
+			BrokerQueue queue = _queues.get(queueName);
+			if (queue == null) {
+				throw new IOException("NOT_FOUND - no queue " + queueName);
+			}
+
+			String tag = generateName("amq.ctag-");
+			Subscription subscription = new Subscription(this, queue, tag,
+				autoAck, consumer);
+			_subscriptions.put(tag, subscription);
+			consumer.handleConsumeOk(tag);
+			subscription.start();
+			return tag;
+		}
+
+		/**
+		 * Acks, or nacks with optional requeue, the given deliveries.
+		 */
+		private void settle(long deliveryTag, boolean multiple,
+			boolean requeue) {
+
+			Map<Long, Unacked> settled = multiple ? _unacked.headMap(
+				deliveryTag, true) : _unacked.subMap(deliveryTag, true,
+				deliveryTag, true);
+			for (Long settledTag : settled.keySet()) {
+				Unacked unacked = _unacked.remove(settledTag);
+				if (unacked == null) {
+					continue;
+				}
+				unacked._subscription._unackedCount.decrementAndGet();
+				if (requeue) {
+					BrokerQueue queue = _queues
+						.get(unacked._delivery._routingKey);
+					if (queue != null) {
+						queue.enqueue(unacked._delivery);
+					}
+				}
+			}
+			synchronized (_prefetchLock) {
+				_prefetchLock.notifyAll();
+			}
+		}
+
+		private void close() {
+			_open = false;
+			for (Subscription subscription : _subscriptions.values()) {
+				subscription.cancel();
+			}
+			_subscriptions.clear();
+			synchronized (_prefetchLock) {
+				_prefetchLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A consumer of a queue; delivers on its own thread, in order, as the
+	 * client library does.
+	 */
+	private static final class Subscription implements Runnable {
+
+		private final BrokerChannel _channel;
+		private final BrokerQueue _queue;
+		private final String _tag;
+		private final boolean _autoAck;
+		private final Consumer _consumer;
+		private final Thread _thread;
+		private final int _prefetch;
+		private final AtomicInteger _unackedCount = new AtomicInteger();
+		private volatile boolean _cancelled;
+
+		private Subscription(BrokerChannel channel, BrokerQueue queue,
+			String tag, boolean autoAck, Consumer consumer) {
+			_channel = channel;
+			_queue = queue;
+			_tag = tag;
+			_autoAck = autoAck;
+			_consumer = consumer;
+			_prefetch = channel._prefetch;
+			_thread = new Thread(this, "in-process-broker-" + tag);
+			_thread.setDaemon(true);
+		}
+
+		private void start() {
+			_queue._consumerCount.incrementAndGet();
+			_thread.start();
+		}
+
+		private void cancel() {
+			if (!_cancelled) {
+				_cancelled = true;
+				_queue._consumerCount.decrementAndGet();
+				_thread.interrupt();
+			}
+		}
+
+		/**
+		 * Waits until the prefetch counts of the consumer and the channel
+		 * allow one more unacked delivery.
+		 */
+		private void awaitPrefetch() throws InterruptedException {
+			synchronized (_channel._prefetchLock) {
+				while (_channel._open
+					&& (_prefetch > 0 && _unackedCount.get() >= _prefetch
+					|| _channel._globalPrefetch > 0
+					&& _channel._unacked.size() >= _channel._globalPrefetch)) {
+					_channel._prefetchLock.wait();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!_cancelled) {
+				Delivery delivery;
+				try {
+					if (!_autoAck) {
+						awaitPrefetch();
+					}
+					delivery = _queue._messages.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (_cancelled) {
+					// hand the message to another consumer
+					_queue.enqueue(delivery);
+					return;
+				}
+
+				long deliveryTag = _channel._deliveryTags.incrementAndGet();
+				if (!_autoAck) {
+					// requeued deliveries are routed back by the queue name
+					_unackedCount.incrementAndGet();
+					_channel._unacked.put(deliveryTag, new Unacked(new Delivery(
+						delivery._exchange, _queue._name, delivery._properties,
+						delivery._body), this));
+				}
+				try {
+					_consumer.handleDelivery(_tag, new Envelope(deliveryTag,
+						false, delivery._exchange, delivery._routingKey),
+						delivery._properties, delivery._body);
+				} catch (IOException | RuntimeException e) {
+					LOG.error("Consumer: {} failed to handle delivery: {}",
+						_tag, deliveryTag, e);
+				}
+			}
+		}
+	}
+}
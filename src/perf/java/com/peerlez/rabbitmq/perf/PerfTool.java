@@ -0,0 +1,379 @@
+package com.peerlez.rabbitmq.perf;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.peerlez.rabbitmq.LatencyHistogram;
+import com.peerlez.rabbitmq.LatencyTracker;
+import com.peerlez.rabbitmq.Message;
+import com.peerlez.rabbitmq.MessagePool;
+import com.peerlez.rabbitmq.PublishRateLimiter;
+import com.peerlez.rabbitmq.RabbitMq;
+import com.peerlez.rabbitmq.RabbitMqCoalescingPublisher;
+import com.peerlez.rabbitmq.RabbitMqConnection;
+import com.peerlez.rabbitmq.RabbitMqConnectionFactory;
+import com.peerlez.rabbitmq.RabbitMqConsumer;
+import com.peerlez.rabbitmq.RabbitMqExecutors;
+import com.peerlez.rabbitmq.RabbitMqPublish;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Load generator driving the library publish and consume paths. Reports the
+ * publish and consume rates and the end-to-end latency percentiles once per
+ * interval. Runs against the {@link InProcessBroker} unless a server is
+ * given.
+ *
+ * Options, all optional:
+ *
+ * <pre>
+ * --producers N         publishing threads (1)
+ * --consumers N         consumers of the shared queue (1)
+ * --size BYTES          message body size (100)
+ * --rate N              messages per second per producer, 0 = unlimited (0)
+ * --duration SECONDS    publishing time (10)
+ * --interval SECONDS    report interval (1)
+ * --publish MODE        rabbitmq | send | confirm | coalesce (send)
+ * --confirm-timeout MS  confirm timeout of the confirm mode (5000)
+ * --coalesce-bytes N    envelope size of the coalesce mode (16384)
+ * --linger-ms N         envelope linger time of the coalesce mode (5)
+ * --exchange-type TYPE  direct | topic | fanout | headers (direct)
+ * --prefetch N          consumer prefetch count (100)
+ * --virtual-threads     run the handlers on virtual threads, or on a cached
+ *                       platform thread pool before Java 21
+ * --pooled [MODE]       pooled low-allocation consume mode, heap | direct (heap)
+ * --max-rate N          adaptive rate limit per producer connection, 0 = none (0)
+ * --blocked-timeout-ms N time a publish waits on a blocked connection (0)
+ * --alarm-at SECONDS    in-process broker raises a resource alarm at (none)
+ * --alarm-for SECONDS   duration of the resource alarm (1)
+ * --server HOST:PORT    broker to use instead of the in-process broker
+ * --vhost, --user, --password  credentials of the broker
+ * </pre>
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public final class PerfTool {
+
+	private static final String QUEUE = "rabbitmq-perf";
+
+	private final Map<String, String> _options;
+	private final InProcessBroker _broker;
+	private final RabbitMqConnection _connection;
+	private final String _exchange;
+	private final String _routingKey;
+	private final AtomicLong _published = new AtomicLong();
+	private final AtomicLong _consumed = new AtomicLong();
+	private final AtomicLong _consumedBytes = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final LatencyTracker _latencyTracker = new LatencyTracker();
+	private final List<RabbitMqConnectionFactory> _connections =
+		new ArrayList<>();
+	private final List<PublishRateLimiter> _rateLimiters = new ArrayList<>();
+	private volatile boolean _running = true;
+
+	private PerfTool(Map<String, String> options) {
+		_options = options;
+		if (options.containsKey("server")) {
+			_broker = null;
+			_connection = new RabbitMqConnection(option("vhost", ""), option(
+				"user", "guest"), option("password", "guest"),
+				option("server", null));
+		} else {
+			_broker = new InProcessBroker();
+			_connection = new RabbitMqConnection();
+		}
+
+		String exchangeType = option("exchange-type", "direct");
+		_exchange = "rabbitmq-perf-" + exchangeType;
+		// RabbitMqPublish re-declares the exchange with the routing key as its
+		// type, so the routing key has to be the exchange type
+		_routingKey = exchangeType;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unknown argument: "
+					+ args[i]);
+			}
+			String name = args[i].substring(2);
+			boolean hasValue = i + 1 < args.length
+				&& !args[i + 1].startsWith("--");
+			options.put(name, hasValue ? args[++i] : "true");
+		}
+		new PerfTool(options).run();
+	}
+
+	private void run() throws Exception {
+		declareTopology();
+
+		int consumers = intOption("consumers", 1);
+		for (int i = 0; i < consumers; i++) {
+			startConsumer();
+		}
+
+		RabbitMqPublish.instance().setLatencyStamping("rabbitmq-perf");
+		int producers = intOption("producers", 1);
+		List<Thread> producerThreads = new ArrayList<>();
+		for (int i = 0; i < producers; i++) {
+			Thread producer = new Thread(newProducer(), "producer-" + i);
+			producer.start();
+			producerThreads.add(producer);
+		}
+
+		System.out.printf("broker=%s producers=%d consumers=%d publish=%s "
+			+ "exchangeType=%s size=%d handlers=%s%n", _broker == null
+			? option("server", null) : "in-process", producers, consumers,
+			option("publish", "send"), _routingKey, intOption("size", 100),
+			_options.containsKey("virtual-threads") ? ExecutionModeBenchmark
+				.virtualThreadMode() : "dispatch");
+		System.out.println("  time   pub/s   con/s  p50 ms  p95 ms  p99 ms  "
+			+ "max ms  handler p99 ms  failed  blocked  limit/s");
+
+		long intervalMillis = TimeUnit.SECONDS.toMillis(intOption("interval",
+			1));
+		long end = System.currentTimeMillis()
+			+ TimeUnit.SECONDS.toMillis(intOption("duration", 10));
+		long start = System.currentTimeMillis();
+		long lastPublished = 0;
+		long lastConsumed = 0;
+		long alarmAt = _broker != null && _options.containsKey("alarm-at")
+			? start + TimeUnit.SECONDS.toMillis(intOption("alarm-at", 0))
+			: Long.MAX_VALUE;
+		long alarmEnd = alarmAt == Long.MAX_VALUE ? alarmAt : alarmAt
+			+ TimeUnit.SECONDS.toMillis(intOption("alarm-for", 1));
+		boolean alarm = false;
+
+		while (System.currentTimeMillis() < end) {
+			Thread.sleep(intervalMillis);
+			long now = System.currentTimeMillis();
+			if (!alarm && now >= alarmAt && now < alarmEnd) {
+				_broker.block("simulated memory alarm");
+				alarm = true;
+			} else if (alarm && now >= alarmEnd) {
+				_broker.unblock();
+				alarm = false;
+			}
+			long published = _published.get();
+			long consumed = _consumed.get();
+			report((System.currentTimeMillis() - start) / 1000.0,
+				(published - lastPublished) * 1000.0 / intervalMillis,
+				(consumed - lastConsumed) * 1000.0 / intervalMillis);
+			lastPublished = published;
+			lastConsumed = consumed;
+		}
+
+		_running = false;
+		if (alarm) {
+			_broker.unblock();
+		}
+		for (Thread producer : producerThreads) {
+			producer.join();
+		}
+
+		// let the consumers drain the queue
+		long drainEnd = System.currentTimeMillis() + 5000;
+		while (_consumed.get() < _published.get()
+			&& System.currentTimeMillis() < drainEnd) {
+			Thread.sleep(10);
+		}
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.printf("total: published=%d consumed=%d (%d bytes) "
+			+ "failed=%d in %.1f s%n", _published.get(), _consumed.get(),
+			_consumedBytes.get(), _failed.get(), seconds);
+		long gcCount = 0;
+		long gcMillis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+			.getGarbageCollectorMXBeans()) {
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcMillis += Math.max(0, gc.getCollectionTime());
+		}
+		System.out.printf("gc: collections=%d time=%d ms%n", gcCount, gcMillis);
+
+		for (RabbitMqConnectionFactory connection : _connections) {
+			connection.newConnection().close();
+		}
+	}
+
+	private void report(double time, double publishRate, double consumeRate) {
+		LatencyTracker.FlowLatency flow = _latencyTracker.getFlow(_exchange,
+			_routingKey);
+		LatencyHistogram latency = flow.getPublishToDeliver();
+		LatencyHistogram handler = flow.getDeliverToAck();
+
+		boolean blocked = false;
+		double limit = 0;
+		for (PublishRateLimiter rateLimiter : _rateLimiters) {
+			blocked |= rateLimiter.isBlocked();
+			limit += rateLimiter.getCurrentRate();
+		}
+
+		System.out.printf("%6.1f %7.0f %7.0f %7.2f %7.2f %7.2f %7.2f %15.2f "
+			+ "%7d %8s %8.0f%n", time, publishRate, consumeRate,
+			millis(latency.getPercentile(50)),
+			millis(latency.getPercentile(95)),
+			millis(latency.getPercentile(99)), millis(latency.getMax()),
+			millis(handler.getPercentile(99)), _failed.get(), blocked, limit);
+
+		latency.reset();
+		handler.reset();
+	}
+
+	private void declareTopology() throws IOException {
+		Channel channel = newConnectionFactory().newChannel();
+		channel.exchangeDeclare(_exchange, _routingKey, true);
+		channel.queueDeclare(QUEUE, false, false, false, null);
+		channel.queueBind(QUEUE, _exchange, _routingKey);
+	}
+
+	private void startConsumer() throws IOException {
+		Channel channel = newConnectionFactory().newChannel();
+		int prefetch = intOption("prefetch", 100);
+		ExecutorService executor = null;
+		if (_options.containsKey("virtual-threads")) {
+			executor = RabbitMqExecutors.newVirtualThreadExecutor();
+		} else {
+			channel.basicQos(prefetch);
+		}
+
+		RabbitMqConsumer consumer = new RabbitMqConsumer(channel, QUEUE,
+			executor, prefetch) {
+
+			@Override
+			public void handleMessage(Message message) {
+				_consumedBytes.addAndGet(message.getBodyBuffer().remaining());
+				_consumed.incrementAndGet();
+			}
+		};
+		consumer.setLatencyTracker(_latencyTracker);
+		if (_options.containsKey("pooled")) {
+			consumer.setMessagePool(new MessagePool(prefetch, intOption(
+				"size", 100) * 2, "direct".equals(option("pooled", "heap"))));
+		}
+	}
+
+	private Runnable newProducer() {
+		final String mode = option("publish", "send");
+		final int rate = intOption("rate", 0);
+		final RabbitMqConnectionFactory connection = newConnectionFactory();
+		PublishRateLimiter rateLimiter = new PublishRateLimiter(intOption(
+			"max-rate", 0), intOption("blocked-timeout-ms", 0));
+		connection.setRateLimiter(rateLimiter);
+		_rateLimiters.add(rateLimiter);
+		final RabbitMq rabbitMq = _broker == null ? new RabbitMq()
+			: new RabbitMq(_broker);
+		if ("rabbitmq".equals(mode)) {
+			rabbitMq.setSharedPublishConnection(true);
+			rabbitMq.setRateLimiter(_connection, rateLimiter);
+		}
+		final RabbitMqCoalescingPublisher coalescer = "coalesce".equals(mode)
+			? new RabbitMqCoalescingPublisher(connection, intOption(
+				"coalesce-bytes", 16384), intOption("linger-ms", 5)) : null;
+		final long confirmTimeout = intOption("confirm-timeout", 5000);
+
+		final Message message = new Message(new BasicProperties.Builder()
+			.contentType("application/octet-stream").build(),
+			new byte[intOption("size", 100)], _exchange, _routingKey, 0);
+
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1)
+					/ rate : 0;
+				long next = System.nanoTime();
+
+				while (_running) {
+					if (intervalNanos > 0) {
+						next += intervalNanos;
+						long wait = next - System.nanoTime();
+						if (wait < -TimeUnit.SECONDS.toNanos(1)) {
+							// fell behind, don't burst to catch up
+							next = System.nanoTime();
+						} else if (wait > 0) {
+							try {
+								TimeUnit.NANOSECONDS.sleep(wait);
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					try {
+						publish(mode, message, connection, rabbitMq, coalescer,
+							confirmTimeout);
+						_published.incrementAndGet();
+					} catch (IOException | RuntimeException e) {
+						_failed.incrementAndGet();
+					}
+				}
+
+				if (coalescer != null) {
+					try {
+						coalescer.close();
+					} catch (IOException | RuntimeException e) {
+						_failed.incrementAndGet();
+					}
+				}
+				rabbitMq.close();
+			}
+		};
+	}
+
+	private void publish(String mode, Message message,
+		RabbitMqConnectionFactory connection, RabbitMq rabbitMq,
+		RabbitMqCoalescingPublisher coalescer, long confirmTimeout)
+		throws IOException {
+
+		switch (mode) {
+		case "rabbitmq":
+			rabbitMq.publish(message, _connection);
+			break;
+		case "send":
+			RabbitMqPublish.instance().send(message, connection);
+			break;
+		case "confirm":
+			RabbitMqPublish.instance().sendConfirmed(message, connection,
+				confirmTimeout);
+			break;
+		case "coalesce":
+			coalescer.send(message);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown publish mode: " + mode);
+		}
+	}
+
+	private RabbitMqConnectionFactory newConnectionFactory() {
+		RabbitMqConnectionFactory connection = _broker == null
+			? new RabbitMqConnectionFactory(_connection.getConnectionUri())
+			: new RabbitMqConnectionFactory(_broker);
+		connection.newConnection();
+		_connections.add(connection);
+		return connection;
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = _options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		String value = _options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,107 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the bucket and percentile math of {@link LatencyHistogram}.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int value = 1; value <= 10; value++) {
+			histogram.record(value);
+		}
+		assertEquals(10, histogram.getCount());
+		assertEquals(5.5, histogram.getMean(), 0);
+		assertEquals(1, histogram.getPercentile(10));
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(10, histogram.getPercentile(100));
+		assertEquals(10, histogram.getMax());
+	}
+
+	@Test
+	public void testPercentileIsBucketUpperBound() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.record(2000);
+		// 1000 falls in the bucket [960, 1023]
+		assertEquals(1023, histogram.getPercentile(50));
+		assertEquals(2000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testPercentileCappedAtMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		assertEquals(1000, histogram.getPercentile(50));
+		assertEquals(1000, histogram.getPercentile(99.9));
+	}
+
+	@Test
+	public void testRelativeError() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(42);
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(random.nextDouble() * 25);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+
+		for (double percentile : new double[] { 1, 25, 50, 90, 99, 99.9 }) {
+			long exact = values[(int) Math.ceil(values.length * percentile
+				/ 100) - 1];
+			long estimate = histogram.getPercentile(percentile);
+			assertTrue(percentile + ": " + estimate + " < " + exact,
+				estimate >= exact);
+			assertTrue(percentile + ": " + estimate + " > " + exact,
+				estimate <= exact + exact / 8);
+		}
+	}
+
+	@Test
+	public void testLargeValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void testNegativeRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getMax());
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
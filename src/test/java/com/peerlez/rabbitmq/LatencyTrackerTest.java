@@ -0,0 +1,141 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests the latency stamping of {@link RabbitMqPublish} and the recording of
+ * {@link LatencyTracker}.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class LatencyTrackerTest {
+
+	private static final String EXCHANGE = "latency-test";
+	private static final String QUEUE = "latency-test";
+
+	private RabbitMqConnectionFactory _connection;
+	private final BlockingQueue<Message> _received =
+		new ArrayBlockingQueue<>(10);
+
+	@Before
+	public void setUp() throws IOException {
+		_connection = new RabbitMqConnectionFactory(new InProcessBroker());
+		_connection.newConnection();
+		Channel channel = _connection.newChannel();
+		// RabbitMqPublish declares the exchange with the routing key as type
+		channel.exchangeDeclare(EXCHANGE, "direct", true);
+		channel.queueDeclare(QUEUE, false, false, false, null);
+		channel.queueBind(QUEUE, EXCHANGE, "direct");
+		new RabbitMqConsumer(channel, QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				_received.add(message);
+			}
+		};
+		RabbitMqPublish.instance().setLatencyStamping("latency-test");
+	}
+
+	@After
+	public void tearDown() {
+		RabbitMqPublish.instance().setLatencyStamping(null);
+	}
+
+	@Test
+	public void testForwardedMessageRestamped() throws Exception {
+		// headers of a message consumed from an upstream publisher
+		Map<String, Object> headers = new HashMap<>();
+		headers.put(LatencyTracker.PUBLISH_NANOS_HEADER, 1L);
+		headers.put(LatencyTracker.PUBLISH_TIMESTAMP_HEADER, 1L);
+		headers.put(LatencyTracker.ORIGIN_HEADER, "upstream");
+
+		RabbitMqPublish.instance().send(new Message(new BasicProperties
+			.Builder().headers(headers).build(), new byte[10], EXCHANGE,
+			"direct", 0), _connection);
+
+		Map<String, Object> stamped = receive().getBasicProperties()
+			.getHeaders();
+		assertEquals("latency-test", stamped.get(LatencyTracker.ORIGIN_HEADER)
+			.toString());
+		assertNotEquals(1L, stamped.get(LatencyTracker.PUBLISH_NANOS_HEADER));
+	}
+
+	@Test
+	public void testEnvelopeKeepsSendTime() throws Exception {
+		RabbitMqCoalescingPublisher publisher = new RabbitMqCoalescingPublisher(
+			_connection, 16384, 10000);
+		long beforeSend = System.nanoTime();
+		publisher.send(new Message(null, new byte[10], EXCHANGE, "direct", 0));
+		Thread.sleep(50);
+		long beforeFlush = System.nanoTime();
+		publisher.close();
+
+		long publishNanos = ((Number) receive().getBasicProperties()
+			.getHeaders().get(LatencyTracker.PUBLISH_NANOS_HEADER))
+			.longValue();
+		// stamped when the first message was sent, not when published
+		assertTrue(publishNanos >= beforeSend);
+		assertTrue(publishNanos < beforeFlush);
+	}
+
+	@Test
+	public void testSameHostUsesMonotonicClock() {
+		BasicProperties properties = LatencyTracker.stamp(
+			new BasicProperties.Builder().build(), "latency-test");
+		// without a resolved host name the wall clock is always used
+		assumeTrue(properties.getHeaders().containsKey(
+			LatencyTracker.ORIGIN_HOST_HEADER));
+		long publishNanos = ((Number) properties.getHeaders().get(
+			LatencyTracker.PUBLISH_NANOS_HEADER)).longValue();
+
+		LatencyTracker tracker = new LatencyTracker();
+		tracker.recordDelivery(EXCHANGE, "direct", properties, publishNanos
+			+ 1000);
+		assertEquals(1000, tracker.getFlow(EXCHANGE, "direct")
+			.getPublishToDeliver().getMax());
+	}
+
+	@Test
+	public void testUnrelatedMonotonicClockIgnored() {
+		BasicProperties properties = LatencyTracker.stamp(
+			new BasicProperties.Builder().build(), "latency-test");
+		Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+		long publishNanos = ((Number) headers.get(
+			LatencyTracker.PUBLISH_NANOS_HEADER)).longValue();
+		// stamped by another JVM whose monotonic clock has another origin
+		headers.put(LatencyTracker.PUBLISH_NANOS_HEADER, publishNanos
+			- TimeUnit.HOURS.toNanos(1));
+
+		LatencyTracker tracker = new LatencyTracker();
+		tracker.recordDelivery(EXCHANGE, "direct", properties.builder()
+			.headers(headers).build(), publishNanos);
+		// the wall clock result is used instead
+		assertTrue(tracker.getFlow(EXCHANGE, "direct").getPublishToDeliver()
+			.getMax() < TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private Message receive() throws InterruptedException {
+		Message message = _received.poll(5, TimeUnit.SECONDS);
+		assertTrue(message != null);
+		return message;
+	}
+}
@@ -0,0 +1,261 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests the envelope framing of {@link RabbitMqCoalescingPublisher} and its
+ * unpacking by {@link RabbitMqConsumer}.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class MessageEnvelopeTest {
+
+	private static final String EXCHANGE = "envelope-test";
+	private static final String QUEUE = "envelope-test";
+
+	private InProcessBroker _broker;
+	private RabbitMqConnectionFactory _connection;
+
+	@Before
+	public void setUp() throws IOException {
+		_broker = new InProcessBroker();
+		_connection = new RabbitMqConnectionFactory(_broker);
+		_connection.newConnection();
+		Channel channel = _connection.newChannel();
+		// RabbitMqPublish declares the exchange with the routing key as type
+		channel.exchangeDeclare(EXCHANGE, "direct", true);
+		channel.queueDeclare(QUEUE, false, false, false, null);
+		channel.queueBind(QUEUE, EXCHANGE, "direct");
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<Message> sent = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			sent.add(new Message(new BasicProperties.Builder()
+				.contentType("text/plain").build(), ("message " + i)
+				.getBytes(Message.DEFAULT_MESSAGE_CHARSET), EXCHANGE,
+				"direct", 0));
+		}
+
+		RabbitMqCoalescingPublisher publisher = new RabbitMqCoalescingPublisher(
+			_connection, 16384, 10000);
+		for (Message message : sent) {
+			publisher.send(message);
+		}
+		publisher.close();
+
+		assertEquals(1, queueDepth());
+		List<Message> received = consume(sent.size());
+		for (int i = 0; i < sent.size(); i++) {
+			assertArrayEquals(RabbitMqPublish.toBody(sent.get(i)), received
+				.get(i).getBodyContent());
+			BasicProperties properties = received.get(i).getBasicProperties();
+			assertEquals("text/plain", properties.getContentType());
+			assertNull(properties.getHeaders());
+		}
+	}
+
+	@Test
+	public void testDeliveryModeNotShared() throws Exception {
+		RabbitMqCoalescingPublisher publisher = new RabbitMqCoalescingPublisher(
+			_connection, 16384, 10000);
+		for (int deliveryMode : new int[] { 1, 2, 1, 2 }) {
+			publisher.send(new Message(new BasicProperties.Builder()
+				.deliveryMode(deliveryMode).build(), new byte[10], EXCHANGE,
+				"direct", 0));
+		}
+		publisher.close();
+
+		// one envelope per delivery mode
+		assertEquals(2, queueDepth());
+		int persistent = 0;
+		for (Message message : consume(4)) {
+			if (message.getBasicProperties().getDeliveryMode() == 2) {
+				persistent++;
+			}
+		}
+		assertEquals(2, persistent);
+	}
+
+	@Test
+	public void testPerMessagePropertiesNotPacked() throws Exception {
+		RabbitMqCoalescingPublisher publisher = new RabbitMqCoalescingPublisher(
+			_connection, 16384, 10000);
+		publisher.send(new Message(new BasicProperties.Builder().messageId(
+			"first").build(), new byte[10], EXCHANGE, "direct", 0));
+		publisher.send(new Message(new BasicProperties.Builder().messageId(
+			"second").build(), new byte[10], EXCHANGE, "direct", 0));
+		publisher.close();
+
+		List<Message> received = consume(2);
+		assertEquals("first", received.get(0).getBasicProperties()
+			.getMessageId());
+		assertEquals("second", received.get(1).getBasicProperties()
+			.getMessageId());
+		assertFalse(MessageEnvelope.isEnvelope(received.get(0)
+			.getBasicProperties()));
+	}
+
+	@Test
+	public void testSendAfterClose() throws Exception {
+		RabbitMqCoalescingPublisher publisher = new RabbitMqCoalescingPublisher(
+			_connection, 16384, 10000);
+		publisher.close();
+		// closing twice is harmless
+		publisher.close();
+		try {
+			publisher.send(new Message(null, new byte[10], EXCHANGE, "direct",
+				0));
+			fail("Send after close accepted");
+		} catch (IllegalStateException expected) {
+			// the message is refused, not left pending
+		}
+		assertEquals(0, queueDepth());
+	}
+
+	@Test
+	public void testCheckFraming() throws IOException {
+		MessageEnvelope.checkFraming(envelopeProperties(2), pack(new byte[3],
+			new byte[0]));
+		MessageEnvelope.checkFraming(envelopeProperties(0), new byte[0]);
+	}
+
+	@Test
+	public void testTruncatedLength() throws IOException {
+		byte[] body = pack(new byte[3]);
+		assertMalformed(envelopeProperties(2), concat(body, new byte[2]));
+	}
+
+	@Test
+	public void testTruncatedBody() throws IOException {
+		byte[] body = pack(new byte[3]);
+		byte[] truncated = new byte[body.length - 1];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		assertMalformed(envelopeProperties(1), truncated);
+	}
+
+	@Test
+	public void testNegativeLength() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		new DataOutputStream(buffer).writeInt(-1);
+		assertMalformed(envelopeProperties(1), buffer.toByteArray());
+	}
+
+	@Test
+	public void testCountMismatch() throws IOException {
+		assertMalformed(envelopeProperties(3), pack(new byte[3], new byte[3]));
+	}
+
+	@Test
+	public void testInvalidCount() throws IOException {
+		Map<String, Object> headers = new HashMap<>();
+		headers.put(MessageEnvelope.COUNT_HEADER, "two");
+		assertMalformed(new BasicProperties.Builder().headers(headers).build(),
+			pack(new byte[3], new byte[3]));
+	}
+
+	@Test
+	public void testMalformedEnvelopeNotHandled() throws Exception {
+		final List<Message> handled = Collections
+			.synchronizedList(new ArrayList<Message>());
+		new RabbitMqConsumer(_connection.newChannel(), QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				handled.add(message);
+			}
+		};
+
+		// the first message is intact, the second one is truncated
+		byte[] body = pack(new byte[3], new byte[3]);
+		byte[] truncated = new byte[body.length - 1];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+		_connection.newChannel().basicPublish("", QUEUE,
+			envelopeProperties(2), truncated);
+
+		Thread.sleep(200);
+		assertTrue(handled.isEmpty());
+	}
+
+	private List<Message> consume(int count) throws Exception {
+		final List<Message> received = Collections
+			.synchronizedList(new ArrayList<Message>());
+		final CountDownLatch done = new CountDownLatch(count);
+		RabbitMqConnectionFactory connection = new RabbitMqConnectionFactory(
+			_broker);
+		connection.newConnection();
+		new RabbitMqConsumer(connection.newChannel(), QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				received.add(message);
+				done.countDown();
+			}
+		};
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		return received;
+	}
+
+	private int queueDepth() throws IOException {
+		return _connection.newChannel().queueDeclarePassive(QUEUE)
+			.getMessageCount();
+	}
+
+	private static BasicProperties envelopeProperties(int count) {
+		return MessageEnvelope.envelopeProperties(
+			new BasicProperties.Builder().build(), count);
+	}
+
+	private static byte[] pack(byte[]... bodies) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(buffer);
+		for (byte[] body : bodies) {
+			output.writeInt(body.length);
+			output.write(body);
+		}
+		return buffer.toByteArray();
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private static void assertMalformed(BasicProperties properties,
+		byte[] body) {
+		try {
+			MessageEnvelope.checkFraming(properties, body);
+			fail("Malformed envelope accepted");
+		} catch (RabbitMqClientException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(
+				"Malformed envelope"));
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests the heap and off-heap body views, release and reuse of pooled
+ * messages.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class MessagePoolTest {
+
+	private static final BasicProperties PROPERTIES =
+		new BasicProperties.Builder().build();
+
+	@Test
+	public void testHeapRefersToDeliveredBody() throws IOException {
+		MessagePool pool = new MessagePool(4, 16, false);
+		byte[] body = "hello".getBytes(Message.DEFAULT_MESSAGE_CHARSET);
+		Message message = pool.acquire(PROPERTIES, body, 0, body.length, "ex",
+			"key", 7);
+
+		assertSame(body, message.getBodyContent());
+		assertEquals("hello", message.getBodyAsJavaType(String.class));
+		assertEquals("ex", message.getExchange());
+		assertEquals("key", message.getRoutingKey());
+		assertEquals(7, message.getDeliveryTag());
+	}
+
+	@Test
+	public void testHeapSlice() throws IOException {
+		MessagePool pool = new MessagePool(4, 16, false);
+		byte[] body = "xxhelloxx".getBytes(Message.DEFAULT_MESSAGE_CHARSET);
+		Message message = pool.acquire(PROPERTIES, body, 2, 5, "ex", "key", 1);
+
+		assertArrayEquals("hello".getBytes(Message.DEFAULT_MESSAGE_CHARSET),
+			message.getBodyContent());
+		assertEquals("hello", message.getBodyAsJavaType(String.class));
+		ByteBuffer view = message.getBodyBuffer();
+		assertEquals(0, view.position());
+		assertEquals(5, view.remaining());
+		assertEquals('h', view.get(0));
+		assertTrue(view.isReadOnly());
+	}
+
+	@Test
+	public void testDirectCopiesBody() throws IOException {
+		MessagePool pool = new MessagePool(4, 4, true);
+		byte[] body = "xxhelloxx".getBytes(Message.DEFAULT_MESSAGE_CHARSET);
+		Message message = pool.acquire(PROPERTIES, body, 2, 5, "ex", "key", 1);
+
+		// the buffer grows to fit the body, which is copied off the heap
+		body[2] = 'j';
+		assertEquals("hello", message.getBodyAsJavaType(String.class));
+		byte[] content = message.getBodyContent();
+		assertArrayEquals("hello".getBytes(Message.DEFAULT_MESSAGE_CHARSET),
+			content);
+		assertNotSame(content, message.getBodyContent());
+
+		ByteBuffer view = message.getBodyBuffer();
+		assertTrue(view.isDirect());
+		assertTrue(view.isReadOnly());
+		assertEquals(5, view.remaining());
+	}
+
+	@Test
+	public void testReleaseAndReuse() {
+		MessagePool pool = new MessagePool(1, 16, true);
+		Message first = pool.acquire(PROPERTIES, new byte[3], 0, 3, "ex",
+			"key", 1);
+		Message second = pool.acquire(PROPERTIES, new byte[3], 0, 3, "ex",
+			"key", 2);
+		assertNotSame(first, second);
+
+		pool.release(first);
+		assertNull(first.getBasicProperties());
+		assertEquals(0, first.getBodyBuffer().remaining());
+		// the pool only keeps one idle message
+		pool.release(second);
+		assertEquals(1, pool.getPooledCount());
+
+		Message reused = pool.acquire(PROPERTIES, new byte[8], 0, 8, "ex",
+			"key", 3);
+		assertSame(first, reused);
+		assertEquals(8, reused.getBodyBuffer().remaining());
+		assertEquals(3, reused.getDeliveryTag());
+		assertEquals(0, pool.getPooledCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReleaseForeignMessage() {
+		MessagePool pool = new MessagePool(1, 16, false);
+		Message message = new MessagePool(1, 16, false).acquire(PROPERTIES,
+			new byte[3], 0, 3, "ex", "key", 1);
+		pool.release(message);
+	}
+
+	@Test
+	public void testConsumerRecyclesMessages() throws Exception {
+		RabbitMqConnectionFactory connection = new RabbitMqConnectionFactory(
+			new InProcessBroker());
+		connection.newConnection();
+		Channel channel = connection.newChannel();
+		channel.queueDeclare("pool-test", false, false, false, null);
+
+		final MessagePool pool = new MessagePool(4, 16, false);
+		final Set<Message> instances = Collections
+			.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		final CountDownLatch done = new CountDownLatch(100);
+		RabbitMqConsumer consumer = new RabbitMqConsumer(channel, "pool-test") {
+
+			@Override
+			public void handleMessage(Message message) {
+				instances.add(message);
+				done.countDown();
+			}
+		};
+		consumer.setMessagePool(pool);
+		// published once the pool is set, as consuming starts right away
+		for (int i = 0; i < 100; i++) {
+			channel.basicPublish("", "pool-test", PROPERTIES, new byte[10]);
+		}
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		// handled on the dispatch thread, so one message serves them all
+		assertEquals(1, instances.size());
+	}
+}
@@ -0,0 +1,153 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests blocking, blocked timeouts and rate recovery of
+ * {@link PublishRateLimiter}.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class PublishRateLimiterTest {
+
+	@Test
+	public void testUnlimited() {
+		PublishRateLimiter limiter = new PublishRateLimiter(0, 0);
+		for (int i = 0; i < 100000; i++) {
+			limiter.acquire();
+		}
+		assertEquals(0, limiter.getCurrentRate(), 0);
+	}
+
+	@Test
+	public void testBlockedFailsImmediately() {
+		PublishRateLimiter limiter = new PublishRateLimiter(0, 0);
+		limiter.onBlocked("low on memory");
+		assertTrue(limiter.isBlocked());
+		assertEquals("low on memory", limiter.getBlockedReason());
+
+		try {
+			limiter.acquire();
+			fail("Publish allowed while blocked");
+		} catch (RabbitMqClientException e) {
+			assertTrue(e.getMessage().contains("low on memory"));
+		}
+		assertEquals(1, limiter.getRejectedCount());
+		assertEquals(1, limiter.getBlockedCount());
+	}
+
+	@Test
+	public void testBlockedTimeout() {
+		PublishRateLimiter limiter = new PublishRateLimiter(0, 100);
+		limiter.onBlocked("low on disk");
+
+		long start = System.nanoTime();
+		try {
+			limiter.acquire();
+			fail("Publish allowed while blocked");
+		} catch (RabbitMqClientException e) {
+			long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- start);
+			assertTrue("Waited " + waitedMillis + " ms", waitedMillis >= 100);
+		}
+		assertTrue(limiter.getBlockedMillis() >= 100);
+	}
+
+	@Test
+	public void testUnblockReleasesWaitingPublish() throws Exception {
+		final PublishRateLimiter limiter = new PublishRateLimiter(0, 10000);
+		limiter.onBlocked("low on memory");
+
+		Thread unblocker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				limiter.onUnblocked();
+			}
+		});
+		long start = System.nanoTime();
+		unblocker.start();
+		limiter.acquire();
+
+		long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+			- start);
+		assertTrue("Waited " + waitedMillis + " ms", waitedMillis < 5000);
+		assertFalse(limiter.isBlocked());
+		assertEquals(0, limiter.getRejectedCount());
+		unblocker.join();
+	}
+
+	@Test
+	public void testRateLimit() {
+		// bursts of 10, then one publish per 10 ms
+		PublishRateLimiter limiter = new PublishRateLimiter(100, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			limiter.acquire();
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+			- start);
+		assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 90);
+	}
+
+	@Test
+	public void testBlockHalvesRate() {
+		PublishRateLimiter limiter = new PublishRateLimiter(1000, 0);
+		limiter.onBlocked("low on memory");
+		limiter.onUnblocked();
+		assertEquals(500, limiter.getCurrentRate(), 5);
+
+		// a repeated notification is not a new block
+		limiter.onBlocked("low on memory");
+		limiter.onBlocked("low on memory");
+		limiter.onUnblocked();
+		assertEquals(250, limiter.getCurrentRate(), 5);
+		assertEquals(2, limiter.getBlockedCount());
+	}
+
+	@Test
+	public void testRateFloor() {
+		PublishRateLimiter limiter = new PublishRateLimiter(1000, 0);
+		for (int i = 0; i < 10; i++) {
+			limiter.onBlocked("low on memory");
+			limiter.onUnblocked();
+		}
+		// never below 5 % of the maximum
+		assertEquals(50, limiter.getCurrentRate(), 5);
+	}
+
+	@Test
+	public void testRateRecovers() throws Exception {
+		PublishRateLimiter limiter = new PublishRateLimiter(1000, 0);
+		limiter.onBlocked("low on memory");
+		limiter.onUnblocked();
+		double halved = limiter.getCurrentRate();
+
+		// recovers 10 % of the maximum per second
+		Thread.sleep(500);
+		double recovered = limiter.getCurrentRate();
+		assertTrue("Recovered to " + recovered, recovered >= halved + 45);
+		assertTrue("Recovered to " + recovered, recovered <= 1000);
+	}
+
+	@Test
+	public void testRateDoesNotRecoverWhileBlocked() throws Exception {
+		PublishRateLimiter limiter = new PublishRateLimiter(1000, 0);
+		limiter.onBlocked("low on memory");
+		Thread.sleep(200);
+		assertEquals(500, limiter.getCurrentRate(), 0);
+	}
+}
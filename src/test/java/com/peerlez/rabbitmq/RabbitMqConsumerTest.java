@@ -0,0 +1,160 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests handler execution of {@link RabbitMqConsumer} against the
+ * in-process broker.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RabbitMqConsumerTest {
+
+	private static final String QUEUE = "consumer-test";
+
+	private Channel _channel;
+	private ExecutorService _executor;
+
+	@Before
+	public void setUp() throws IOException {
+		RabbitMqConnectionFactory connection = new RabbitMqConnectionFactory(
+			new InProcessBroker());
+		connection.newConnection();
+		_channel = connection.newChannel();
+		_channel.queueDeclare(QUEUE, false, false, false, null);
+		_executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		_executor.shutdownNow();
+	}
+
+	@Test
+	public void testExecutorLimitsPrefetch() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			_channel.basicPublish("", QUEUE, new BasicProperties.Builder()
+				.build(), new byte[10]);
+		}
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger handled = new AtomicInteger();
+		new RabbitMqConsumer(_channel, QUEUE, _executor, 2) {
+
+			@Override
+			public void handleMessage(Message message) {
+				running.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				running.decrementAndGet();
+				handled.incrementAndGet();
+			}
+		};
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		// the broker holds back everything beyond the prefetch count
+		assertEquals(2, running.get());
+		assertEquals(8, _channel.queueDeclarePassive(QUEUE).getMessageCount());
+
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handled.get() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, handled.get());
+	}
+
+	@Test
+	public void testExecutorRequeuesFailedDelivery() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			_channel.basicPublish("", QUEUE, new BasicProperties.Builder()
+				.build(), new byte[10]);
+		}
+
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger handled = new AtomicInteger();
+		new RabbitMqConsumer(_channel, QUEUE, _executor, 2) {
+
+			@Override
+			public void handleMessage(Message message) {
+				// fails as many deliveries as there are permits
+				if (calls.incrementAndGet() <= 2) {
+					throw new IllegalStateException("fails");
+				}
+				handled.incrementAndGet();
+			}
+		};
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handled.get() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(10, handled.get());
+		assertEquals(0, _channel.queueDeclarePassive(QUEUE).getMessageCount());
+	}
+
+	@Test
+	public void testExecutorDiscardsFailedDelivery() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger handled = new AtomicInteger();
+		RabbitMqConsumer consumer = new RabbitMqConsumer(_channel, QUEUE,
+			_executor, 2) {
+
+			@Override
+			public void handleMessage(Message message) {
+				if (calls.incrementAndGet() <= 2) {
+					throw new IllegalStateException("fails");
+				}
+				handled.incrementAndGet();
+			}
+		};
+		consumer.setRequeueOnFailure(false);
+		for (int i = 0; i < 10; i++) {
+			_channel.basicPublish("", QUEUE, new BasicProperties.Builder()
+				.build(), new byte[10]);
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (calls.get() < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(10, calls.get());
+		assertEquals(8, handled.get());
+		assertEquals(0, _channel.queueDeclarePassive(QUEUE).getMessageCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExecutorRequiresConcurrency() throws IOException {
+		new RabbitMqConsumer(_channel, QUEUE, _executor, 0) {
+
+			@Override
+			public void handleMessage(Message message) {
+			}
+		};
+	}
+}
@@ -0,0 +1,142 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests {@link RabbitMqRpcClient} and {@link RabbitMqRpcServer} against the
+ * in-process broker.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RabbitMqRpcTest {
+
+	private static final String SERVICE_QUEUE = "rpc-test";
+	private static final String IDLE_QUEUE = "rpc-test-idle";
+
+	private InProcessBroker _broker;
+	private ExecutorService _executor;
+	private RabbitMqRpcClient _client;
+
+	@Before
+	public void setUp() throws IOException {
+		_broker = new InProcessBroker();
+		Channel channel = newChannel();
+		channel.queueDeclare(SERVICE_QUEUE, false, false, false, null);
+		channel.queueDeclare(IDLE_QUEUE, false, false, false, null);
+
+		_executor = Executors.newFixedThreadPool(4);
+		new RabbitMqRpcServer(newChannel(), SERVICE_QUEUE, _executor, 4) {
+
+			@Override
+			public byte[] handleCall(Message request) {
+				return new String(request.getBodyContent(),
+					Message.DEFAULT_MESSAGE_CHARSET).toUpperCase().getBytes(
+					Message.DEFAULT_MESSAGE_CHARSET);
+			}
+		};
+		_client = new RabbitMqRpcClient(newChannel(), 5000);
+	}
+
+	@After
+	public void tearDown() {
+		_client.close();
+		_executor.shutdownNow();
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Message reply = _client.call(request(SERVICE_QUEUE, "hello"));
+		assertEquals("HELLO", new String(reply.getBodyContent(),
+			Message.DEFAULT_MESSAGE_CHARSET));
+		assertEquals(0, _client.getPendingCallCount());
+	}
+
+	@Test
+	public void testConcurrentCalls() throws Exception {
+		List<Future<Message>> replies = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			replies.add(_client.callAsync(request(SERVICE_QUEUE, "call " + i),
+				5, TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < replies.size(); i++) {
+			assertEquals("CALL " + i, new String(replies.get(i).get()
+				.getBodyContent(), Message.DEFAULT_MESSAGE_CHARSET));
+		}
+	}
+
+	@Test
+	public void testTimeout() {
+		try {
+			_client.call(request(IDLE_QUEUE, "hello"), 50,
+				TimeUnit.MILLISECONDS);
+			fail("Reply received from an idle queue");
+		} catch (RabbitMqClientException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(0, _client.getPendingCallCount());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		Future<Message> reply = _client.callAsync(request(IDLE_QUEUE,
+			"hello"), 5, TimeUnit.SECONDS);
+		assertEquals(1, _client.getPendingCallCount());
+
+		assertTrue(reply.cancel(false));
+		assertTrue(reply.isCancelled());
+		assertTrue(reply.isDone());
+		assertEquals(0, _client.getPendingCallCount());
+		try {
+			reply.get();
+			fail("Cancelled call completed");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCloseFailsPendingCalls() throws Exception {
+		Future<Message> reply = _client.callAsync(request(IDLE_QUEUE,
+			"hello"), 5, TimeUnit.SECONDS);
+		_client.close();
+		try {
+			reply.get();
+			fail("Call completed after close");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RabbitMqClientException);
+		}
+	}
+
+	private Channel newChannel() {
+		RabbitMqConnectionFactory connection = new RabbitMqConnectionFactory(
+			_broker);
+		connection.newConnection();
+		return connection.newChannel();
+	}
+
+	private static Message request(String queueName, String body) {
+		return new Message(null, body.getBytes(Message.DEFAULT_MESSAGE_CHARSET),
+			"", queueName, 0);
+	}
+}
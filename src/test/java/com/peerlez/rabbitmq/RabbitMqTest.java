@@ -0,0 +1,87 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Tests the publish connections of {@link RabbitMq} against the in-process
+ * broker.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RabbitMqTest {
+
+	private static final String EXCHANGE = "rabbitmq-test";
+
+	private final InProcessBroker _broker = new InProcessBroker();
+	private final List<Connection> _connections =
+		new CopyOnWriteArrayList<>();
+	private final RabbitMqConnection _connection = new RabbitMqConnection();
+	private RabbitMq _rabbitMq;
+	private Message _message;
+
+	@Before
+	public void setUp() {
+		_rabbitMq = new RabbitMq(new ConnectionFactory() {
+
+			@Override
+			public Connection newConnection() throws IOException {
+				Connection connection = _broker.newConnection();
+				_connections.add(connection);
+				return connection;
+			}
+		});
+		// RabbitMqPublish declares the exchange with the routing key as type
+		_message = new Message(new BasicProperties.Builder().build(),
+			new byte[10], EXCHANGE, "direct", 0);
+	}
+
+	@Test
+	public void testConnectionPerPublish() {
+		_rabbitMq.publish(_message, _connection);
+		_rabbitMq.publish(_message, _connection);
+
+		assertEquals(2, _connections.size());
+		for (Connection connection : _connections) {
+			assertFalse(connection.isOpen());
+		}
+	}
+
+	@Test
+	public void testSharedConnection() {
+		_rabbitMq.setSharedPublishConnection(true);
+		_rabbitMq.publish(_message, _connection);
+		_rabbitMq.publish(_message, _connection);
+
+		assertEquals(1, _connections.size());
+		assertTrue(_connections.get(0).isOpen());
+
+		_rabbitMq.close();
+		assertFalse(_connections.get(0).isOpen());
+
+		// a publish after close opens a new shared connection
+		_rabbitMq.publish(_message, _connection);
+		assertEquals(2, _connections.size());
+		assertTrue(_connections.get(1).isOpen());
+		_rabbitMq.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRateLimiterRequiresSharedConnection() {
+		_rabbitMq.setRateLimiter(_connection, new PublishRateLimiter(100, 0));
+	}
+}
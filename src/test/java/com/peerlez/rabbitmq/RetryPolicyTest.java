@@ -0,0 +1,187 @@
+package com.peerlez.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.peerlez.rabbitmq.perf.InProcessBroker;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Tests {@link RetryPolicy} end-to-end against the in-process broker.
+ *
+ * @author A.Sillanpaa
+ *
+ */
+public class RetryPolicyTest {
+
+	private static final String QUEUE = "retry-test";
+
+	private Channel _channel;
+
+	@Before
+	public void setUp() throws IOException {
+		RabbitMqConnectionFactory connection = new RabbitMqConnectionFactory(
+			new InProcessBroker());
+		connection.newConnection();
+		_channel = connection.newChannel();
+	}
+
+	@Test
+	public void testDelays() {
+		RetryPolicy policy = new RetryPolicy(100, 2, 3);
+		assertEquals(3, policy.getMaxAttempts());
+		assertEquals(100, policy.getDelayMillis(0));
+		assertEquals(200, policy.getDelayMillis(1));
+		assertEquals(400, policy.getDelayMillis(2));
+		assertEquals(QUEUE + ".retry.200", policy.getRetryQueueName(QUEUE, 1));
+		assertEquals(QUEUE + ".parking", policy.getParkingQueueName(QUEUE));
+	}
+
+	@Test
+	public void testServerNamedQueueRefused() throws IOException {
+		RabbitMqConsumer consumer = new RabbitMqConsumer(_channel) {
+
+			@Override
+			public void handleMessage(Message message) {
+			}
+		};
+		try {
+			consumer.setRetryPolicy(new RetryPolicy(100, 2, 3));
+			fail("Retry policy accepted on " + consumer.getQueueName());
+		} catch (RabbitMqClientException e) {
+			assertTrue(e.getMessage().contains(consumer.getQueueName()));
+		}
+	}
+
+	@Test
+	public void testReservedNameRefusedByBroker() {
+		try {
+			_channel.queueDeclare("amq.gen-1.retry.100", true, false, false,
+				null);
+			fail("Reserved queue name accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("ACCESS_REFUSED"));
+		}
+	}
+
+	@Test
+	public void testRetriedThenParked() throws Exception {
+		_channel.queueDeclare(QUEUE, true, false, false, null);
+		final AtomicInteger attempts = new AtomicInteger();
+		RabbitMqConsumer consumer = new RabbitMqConsumer(_channel, QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				attempts.incrementAndGet();
+				throw new IllegalStateException("always fails");
+			}
+		};
+		RetryPolicy policy = new RetryPolicy(10, 2, 2);
+		consumer.setRetryPolicy(policy);
+
+		_channel.basicPublish("", QUEUE, new BasicProperties.Builder()
+			.build(), new byte[10]);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (depth(policy.getParkingQueueName(QUEUE)) == 0
+			&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, depth(policy.getParkingQueueName(QUEUE)));
+		// the first delivery and one per retry
+		assertEquals(3, attempts.get());
+		assertEquals(0, depth(QUEUE));
+	}
+
+	@Test
+	public void testEnvelopeRetriesRemainder() throws Exception {
+		_channel.queueDeclare(QUEUE, true, false, false, null);
+		final List<String> handled = new CopyOnWriteArrayList<>();
+		final AtomicInteger failures = new AtomicInteger();
+		RabbitMqConsumer consumer = new RabbitMqConsumer(_channel, QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				String body = new String(message.getBodyContent(),
+					Message.DEFAULT_MESSAGE_CHARSET);
+				if ("m2".equals(body) && failures.getAndIncrement() == 0) {
+					throw new IllegalStateException("fails once");
+				}
+				handled.add(body);
+			}
+		};
+		RetryPolicy policy = new RetryPolicy(10, 2, 2);
+		consumer.setRetryPolicy(policy);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(buffer);
+		for (String body : new String[] { "m1", "m2", "m3" }) {
+			output.writeInt(body.length());
+			output.write(body.getBytes(Message.DEFAULT_MESSAGE_CHARSET));
+		}
+		_channel.basicPublish("", QUEUE, MessageEnvelope.envelopeProperties(
+			new BasicProperties.Builder().build(), 3), buffer.toByteArray());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handled.size() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		// the message handled before the failure isn't handled again
+		assertEquals(Arrays.asList("m1", "m2", "m3"), handled);
+		assertEquals(0, depth(policy.getParkingQueueName(QUEUE)));
+		assertEquals(0, depth(QUEUE));
+	}
+
+	@Test
+	public void testMissingRetryQueueRequeues() throws Exception {
+		_channel.queueDeclare(QUEUE, true, false, false, null);
+		final AtomicInteger attempts = new AtomicInteger();
+		final AtomicInteger handled = new AtomicInteger();
+		RabbitMqConsumer consumer = new RabbitMqConsumer(_channel, QUEUE) {
+
+			@Override
+			public void handleMessage(Message message) {
+				if (attempts.incrementAndGet() <= 2) {
+					throw new IllegalStateException("fails twice");
+				}
+				handled.incrementAndGet();
+			}
+		};
+		RetryPolicy policy = new RetryPolicy(10, 2, 2);
+		consumer.setRetryPolicy(policy);
+		// e.g. deleted by hand while the consumer runs
+		_channel.queueDelete(policy.getRetryQueueName(QUEUE, 0));
+
+		_channel.basicPublish("", QUEUE, new BasicProperties.Builder()
+			.build(), new byte[10]);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (handled.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		// requeued when the retry was returned, then retried through the
+		// declared again delay queue
+		assertEquals(1, handled.get());
+		assertEquals(3, attempts.get());
+		assertEquals(0, depth(policy.getParkingQueueName(QUEUE)));
+		assertEquals(0, depth(QUEUE));
+	}
+
+	private int depth(String queueName) throws IOException {
+		return _channel.queueDeclarePassive(queueName).getMessageCount();
+	}
+}